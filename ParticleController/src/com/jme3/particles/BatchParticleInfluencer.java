@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles;
+
+/**
+ * A ParticleInfluencer that can also handle the creation of many particles in one
+ * call. When a ParticleController emits several particles at once it uses this
+ * method for influencers implementing this interface rather than calling
+ * influenceParticleCreation() for each particle.
+ * 
+ * Influencers that only implement ParticleInfluencer are still called once per
+ * particle.
+ */
+public interface BatchParticleInfluencer extends ParticleInfluencer {
+
+    /**
+     * This method is called on each influencer when several particles are emitted at
+     * once. It should behave the same as calling influenceParticleCreation() for
+     * each of the particles in turn.
+     * 
+     * @param ctrl The ParticleController emitting the particles
+     * @param indices The indices of the particles being emitted, the ParticleData
+     * for each can be found in ctrl.getParticles()
+     * @param count The number of entries of indices that are being emitted
+     */
+    void influenceParticleCreation(ParticleController ctrl, int[] indices, int count);
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles;
+
+/**
+ * A ParticleSource that can also configure many particles in one call. When a
+ * ParticleController emits several particles at once, such as for a burst, it uses
+ * sourceParticles() for sources implementing this interface rather than calling
+ * sourceParticle() for each particle. This lets the source do its per-call setup
+ * once and then work through the particles in one tight loop.
+ * 
+ * Sources that only implement ParticleSource are still called once per particle.
+ */
+public interface BatchParticleSource extends ParticleSource {
+
+    /**
+     * This method is called when several particles are emitted at once and allows
+     * the source to configure all of the new particles. It should behave the same
+     * as calling sourceParticle() for each of them in turn.
+     * 
+     * @param pCtrl The ParticleController that is emitting the particles
+     * @param indices The indices of the particles being emitted, the ParticleData
+     * for each can be found in pCtrl.getParticles()
+     * @param count The number of entries of indices that are being emitted
+     */
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count);
+}
@@ -70,6 +70,17 @@ public class ParticleController extends AbstractControl {
     private int nextIndex = 0;
     private Geometry geometry = null;
     private Camera camera;
+    // True when the particles have changed since the mesh was last filled
+    private boolean meshDirty;
+    // The camera the mesh was last filled for
+    private Camera filledCamera;
+    // The indices of the particles being emitted together
+    private int[] emitIndices;
+    // The indices of the active particles in no particular order, and the position
+    // of each particle within that list or -1 if it is not active
+    private int[] activeIndices;
+    private int[] activePositions;
+    private int activeIndexCount;
     
     private int activeCount=0;
 
@@ -119,6 +130,9 @@ public class ParticleController extends AbstractControl {
         for (int i = 0; i < particles.length; i++) {
             particles[i] = new ParticleData();
         }
+        activeIndices = new int[maxParticles];
+        activePositions = new int[maxParticles];
+        Arrays.fill(activePositions, -1);
         this.lifeMin = lifeMin;
         this.lifeMax = lifeMax;
         this.lifeDiff = lifeMax - lifeMin;
@@ -142,6 +156,9 @@ public class ParticleController extends AbstractControl {
         for (int i = 0; i < particles.length; i++) {
             particles[i] = new ParticleData();
         }
+        activeIndices = new int[maxParticles];
+        activePositions = new int[maxParticles];
+        Arrays.fill(activePositions, -1);
         this.lifeMin = lifeMin;
         this.lifeMax = lifeMax;
         this.lifeDiff = lifeMax - lifeMin;
@@ -195,6 +212,28 @@ public class ParticleController extends AbstractControl {
     public int getActiveCount() {
         return activeCount;
     }
+
+    /**
+     * Gets the indices of the particles that are active right now, in no particular
+     * order. Only the first getActiveIndexCount() entries are valid. This is the live
+     * list, which changes as particles are emitted and killed, so must not be
+     * modified.
+     * 
+     * @return The indices of the active particles
+     */
+    public int[] getActiveIndices() {
+        return activeIndices;
+    }
+
+    /**
+     * Gets how many particles are active right now. Unlike getActiveCount() this
+     * changes immediately as particles are emitted and killed.
+     * 
+     * @return The number of valid entries in getActiveIndices()
+     */
+    public int getActiveIndexCount() {
+        return activeIndexCount;
+    }
     
     /**
      * The geometry used by the particles. This is created automatically and
@@ -297,10 +336,30 @@ public class ParticleController extends AbstractControl {
         return lifeMax;
     }
 
-    
+    /**
+     * Marks the mesh as needing to be filled again before it is next displayed.
+     * This is needed when a mesh changes what it displays without the particles
+     * changing, for example when a LodMesh switches between quads and points.
+     */
+    public void setMeshDirty() {
+        meshDirty = true;
+    }
+
     @Override
     protected void controlRender(RenderManager rm, ViewPort vp) {
         camera = vp.getCamera();
+        mesh.updateCamera(camera, this);
+
+        // This is only called if the geometry was not culled, so the mesh is only
+        // filled and sent to the GPU when it is actually going to be drawn. Each
+        // viewport is drawn straight after this is called for it, so when the
+        // particles are shown in several viewports the simulation is shared and the
+        // mesh is only filled again if what it holds depends on the camera.
+        if (meshDirty || (camera != filledCamera && mesh.isCameraDependent())) {
+            mesh.updateParticleData(camera, this);
+            filledCamera = camera;
+            meshDirty = false;
+        }
     }
 
     private void updateParticle(int index, float tpf) {
@@ -332,14 +391,21 @@ public class ParticleController extends AbstractControl {
             }
 
             int emission = emissionController.particlesToSpawn(this, tpf);
-            while (emission-- > 0) {
-                emitNextParticle();
+            if (emission > 0) {
+                emitNextParticles(emission);
             }
             
-            mesh.updateParticleData(camera, this);
+            // The bound is needed for culling so is worked out from the particles
+            // now, the mesh itself is filled in controlRender
+            mesh.particlesUpdated(this);
+            mesh.updateParticleBound(this);
             geometry.updateModelBound();
+            meshDirty = true;
             
             if (emissionController.shouldAutoDisable() && activeCount == 0) {
+                // controlRender will no longer be called so clear the mesh now
+                mesh.updateParticleData(camera, this);
+                meshDirty = false;
                 setEnabled(false);
             }
         }
@@ -363,6 +429,41 @@ public class ParticleController extends AbstractControl {
         return ret;
     }
 
+    /**
+     * Emits up to the given number of the next available (non-active) particles.
+     * This gives the same result as calling emitNextParticle() that many times, but
+     * sources and influencers that support it are given all of the particles in one
+     * call.
+     *
+     * @param count The number of particles to emit
+     * @return The number of particles emitted, which is less than count if the
+     * maximum number were already active
+     */
+    public int emitNextParticles(int count) {
+        int[] indices = getEmitIndices();
+        int emitted = 0;
+        int index = nextIndex;
+        if (index != -1 && count > 0) {
+            // Walk round from the next index in the same order emitNextParticle() would
+            do {
+                if (!particles[index].active) {
+                    indices[emitted++] = index;
+                }
+                index++;
+                if (index >= particles.length) {
+                    index = 0;
+                }
+            } while (emitted < count && index != nextIndex);
+        }
+
+        if (emitted > 0) {
+            emitParticles(indices, emitted);
+            nextIndex = indices[emitted - 1];
+            updateNextParticle();
+        }
+        return emitted;
+    }
+
     /**
      * Emits the next available (non-active) particle
      *
@@ -389,14 +490,57 @@ public class ParticleController extends AbstractControl {
      * Emits all non-active particles
      */
     public void emitAllParticles() {
+        int[] indices = getEmitIndices();
+        int count = 0;
         for (int i = 0; i < particles.length; i++) {
             if (!particles[i].active) {
-                emitParticle(i);
+                indices[count++] = i;
             }
         }
+        if (count > 0) {
+            emitParticles(indices, count);
+        }
         nextIndex = -1;
     }
 
+    private int[] getEmitIndices() {
+        if (emitIndices == null || emitIndices.length != particles.length) {
+            emitIndices = new int[particles.length];
+        }
+        return emitIndices;
+    }
+
+    private void emitParticles(int[] indices, int count) {
+        if (source instanceof BatchParticleSource) {
+            ((BatchParticleSource) source).sourceParticles(this, indices, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                source.sourceParticle(this, indices[i], particles[indices[i]]);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            particles[indices[i]].activate(lifeMin + lifeDiff * FastMath.nextRandomFloat());
+            addActiveIndex(indices[i]);
+        }
+
+        ParticleInfluencer[] array = influencers.getArray();
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] instanceof BatchParticleInfluencer) {
+                ((BatchParticleInfluencer) array[i]).influenceParticleCreation(this, indices, count);
+            } else {
+                for (int j = 0; j < count; j++) {
+                    array[i].influenceParticleCreation(this, indices[j], particles[indices[j]]);
+                }
+            }
+        }
+        activeCount += count;
+
+        if (!enabled && emissionController.shouldAutoDisable()) {
+            setEnabled(true);
+        }
+    }
+
     private void emitParticle(int index) {
         ParticleData pd = particles[index];
         source.sourceParticle(this, index, pd);
@@ -426,6 +570,7 @@ public class ParticleController extends AbstractControl {
      */
     public void killParticle(int index) {
         particles[index].active = false;
+        removeActiveIndex(index);
         setNextIndex(index);
         emissionController.notifyParticleDeath(this, index);
     }
@@ -530,8 +675,27 @@ public class ParticleController extends AbstractControl {
         nextIndex = searchIndex;
     }
 
+    private void addActiveIndex(int index) {
+        if (activePositions[index] == -1) {
+            activePositions[index] = activeIndexCount;
+            activeIndices[activeIndexCount++] = index;
+        }
+    }
+
+    private void removeActiveIndex(int index) {
+        int position = activePositions[index];
+        if (position != -1) {
+            // Move the last entry into the gap
+            int last = activeIndices[--activeIndexCount];
+            activeIndices[position] = last;
+            activePositions[last] = position;
+            activePositions[index] = -1;
+        }
+    }
+
     private void activateParticle(ParticleData pd, int index) {
         pd.activate(lifeMin + lifeDiff * FastMath.nextRandomFloat());
+        addActiveIndex(index);
         ParticleInfluencer[] array = influencers.getArray();
         for (int i = 0; i < array.length; i++) {
             array[i].influenceParticleCreation(this, index, pd);
@@ -75,9 +75,13 @@ public class ParticleData {
      */
     public Vector3f rotationalVelocity = new Vector3f();
     /**
-     * ParticleData image index.
+     * ParticleData image index. Sprites are numbered along each row in turn starting
+     * from the bottom left, so the sprite at a given column and row has the index
+     * row * spriteCols + col. Row 0 is the bottom row of the image file, as textures
+     * are loaded flipped so that it lies at V=0. Indices outside the sheet wrap
+     * round onto it.
      */
-    public int spriteCol, spriteRow;
+    public int spriteIndex;
     /**
      * The state of the particle, inactive particles will not be displayed.
      */
@@ -86,6 +90,12 @@ public class ParticleData {
      * How far through the life of this particle it is (linear progression from 0-1 from spawn to end of life)
      */
     public float lifeProgress = 0;
+    /**
+     * The number of times this particle has been emitted. As particles are reused
+     * this lets anything that keeps state between frames tell that a particle was
+     * emitted again since it last looked, even if it was never seen inactive.
+     */
+    public int emitCount = 0;
 
     /**
      * Called by the ParticleSource to initialize the position and velocity of the particle.
@@ -109,11 +119,55 @@ public class ParticleData {
         
         this.life = life;
         this.startlife = life;
+        emitCount++;
         
         active = true;
         size = 1;
         
-        spriteCol = 0;
-        spriteRow = 0;
+        spriteIndex = 0;
+    }
+
+    /**
+     * @param mesh The mesh whose sprite sheet the index refers to
+     * @return The column of the sprite in the sheet
+     * @deprecated Use spriteIndex, which is row * spriteCols + col
+     */
+    @Deprecated
+    public int getSpriteCol(ParticleMesh mesh) {
+        return spriteIndex % mesh.getSpriteCols();
+    }
+
+    /**
+     * @param mesh The mesh whose sprite sheet the index refers to
+     * @return The row of the sprite in the sheet
+     * @deprecated Use spriteIndex, which is row * spriteCols + col
+     */
+    @Deprecated
+    public int getSpriteRow(ParticleMesh mesh) {
+        return spriteIndex / mesh.getSpriteCols();
+    }
+
+    /**
+     * Sets the column of the sprite, keeping the current row.
+     * 
+     * @param mesh The mesh whose sprite sheet the index refers to
+     * @param spriteCol The column of the sprite in the sheet
+     * @deprecated Use spriteIndex, which is row * spriteCols + col
+     */
+    @Deprecated
+    public void setSpriteCol(ParticleMesh mesh, int spriteCol) {
+        spriteIndex = getSpriteRow(mesh) * mesh.getSpriteCols() + spriteCol;
+    }
+
+    /**
+     * Sets the row of the sprite, keeping the current column.
+     * 
+     * @param mesh The mesh whose sprite sheet the index refers to
+     * @param spriteRow The row of the sprite in the sheet
+     * @deprecated Use spriteIndex, which is row * spriteCols + col
+     */
+    @Deprecated
+    public void setSpriteRow(ParticleMesh mesh, int spriteRow) {
+        spriteIndex = spriteRow * mesh.getSpriteCols() + getSpriteCol(mesh);
     }
 }
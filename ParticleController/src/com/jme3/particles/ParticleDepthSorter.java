@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * The ParticleDepthSorter orders particles from furthest to nearest the camera so
+ * that alpha blended particles composite correctly. Set one on a ParticleMesh using
+ * setDepthSorter() to have that mesh write its particles in sorted order.
+ * 
+ * The sort is a radix sort on the depth of each particle along the camera direction,
+ * so costs O(n). As the order rarely changes much between frames the previous order
+ * is first tried with an insertion sort, which is faster still when only a few
+ * particles are out of place.
+ * 
+ * If the camera has not moved further than the camera threshold since the last sort
+ * and no new particles have been emitted, including into the place of one that has
+ * died since, then the previous order is kept and no sort is done at all. Particles moving relative to each other will not cause a
+ * re-sort, so set a negative threshold to sort every frame.
+ */
+public class ParticleDepthSorter {
+
+    private static final Quaternion workingQ = new Quaternion();
+
+    private float cameraThreshold;
+
+    // All particle indices, the active ones sorted furthest first then the inactive ones
+    private int[] order = new int[0];
+    private int[] orderSwap = new int[0];
+    private int[] keys = new int[0];
+    private int[] keysSwap = new int[0];
+    private boolean[] included = new boolean[0];
+    // The emit count of each particle at the last sort, used to spot particles
+    // emitted again into the same slot
+    private int[] lastEmitCount = new int[0];
+    private int activeCount;
+    private final int[] histogram = new int[4 * 256];
+
+    private boolean sorted;
+    private final Vector3f camLocation = new Vector3f();
+    private final Vector3f camLookAt = new Vector3f();
+    private final Vector3f camDirection = new Vector3f();
+    private final Vector3f lastCamLocation = new Vector3f();
+    private final Vector3f lastCamLookAt = new Vector3f();
+
+    /**
+     * Construct a new ParticleDepthSorter which will re-sort whenever the camera moves.
+     */
+    public ParticleDepthSorter() {
+        this(0);
+    }
+
+    /**
+     * Construct a new ParticleDepthSorter.
+     * 
+     * @param cameraThreshold The distance the camera (or the point one unit in front
+     * of it) must move before the particles are re-sorted.
+     */
+    public ParticleDepthSorter(float cameraThreshold) {
+        this.cameraThreshold = cameraThreshold;
+    }
+
+    /**
+     * @return The distance the camera must move before the particles are re-sorted
+     */
+    public float getCameraThreshold() {
+        return cameraThreshold;
+    }
+
+    /**
+     * @param cameraThreshold The distance the camera (or the point one unit in front
+     * of it) must move before the particles are re-sorted. A negative value re-sorts
+     * every frame.
+     */
+    public void setCameraThreshold(float cameraThreshold) {
+        this.cameraThreshold = cameraThreshold;
+    }
+
+    /**
+     * Sorts the particles of the given controller for display on the given camera.
+     * 
+     * @param cam The camera the particles are being displayed on
+     * @param controller The controller whose particles are being sorted
+     * @return The index of every particle. The active particles come first, ordered
+     * from furthest to nearest, followed by all of the inactive particles. The array
+     * is reused so must not be kept between frames.
+     */
+    public int[] sort(Camera cam, ParticleController controller) {
+        ParticleData[] particles = controller.getParticles();
+        if (order.length != particles.length) {
+            resize(particles.length);
+        }
+
+        // Keep the previous order of the particles that are still alive, adding new
+        // particles to the end.
+        int count = 0;
+        boolean added = false;
+        for (int i = 0; i < activeCount; i++) {
+            int index = order[i];
+            ParticleData p = particles[index];
+            if (p.active) {
+                order[count++] = index;
+                if (p.emitCount != lastEmitCount[index]) {
+                    // The particle died and was emitted again since the last sort,
+                    // so its place in the order is no longer meaningful
+                    added = true;
+                }
+                lastEmitCount[index] = p.emitCount;
+            } else {
+                included[index] = false;
+            }
+        }
+        for (int i = 0; i < particles.length; i++) {
+            if (particles[i].active && !included[i]) {
+                included[i] = true;
+                lastEmitCount[i] = particles[i].emitCount;
+                order[count++] = i;
+                added = true;
+            }
+        }
+        activeCount = count;
+
+        // Work in the mesh space of the particles
+        Transform t = controller.getGeometry().getWorldTransform();
+        t.transformInverseVector(cam.getLocation(), camLocation);
+        workingQ.set(t.getRotation()).inverseLocal();
+        workingQ.mult(cam.getDirection(), camDirection);
+        camLookAt.set(camLocation).addLocal(camDirection);
+
+        float thresholdSquared = cameraThreshold * cameraThreshold;
+        boolean cameraMoved = cameraThreshold < 0
+                || camLocation.distanceSquared(lastCamLocation) > thresholdSquared
+                || camLookAt.distanceSquared(lastCamLookAt) > thresholdSquared;
+
+        if (!sorted || added || cameraMoved) {
+            float cx = camLocation.x, cy = camLocation.y, cz = camLocation.z;
+            float dx = camDirection.x, dy = camDirection.y, dz = camDirection.z;
+            for (int i = 0; i < count; i++) {
+                ParticleData p = particles[order[i]];
+                float depth = (p.position.x - cx) * dx + (p.position.y - cy) * dy + (p.position.z - cz) * dz;
+                // Flip the float bits so the ints sort in the same order as the floats,
+                // then invert so that the furthest particles sort first
+                int bits = Float.floatToRawIntBits(depth);
+                keys[i] = ~(bits ^ ((bits >> 31) | 0x80000000));
+            }
+
+            if (!sorted || !insertionSort(count)) {
+                radixSort(count);
+            }
+
+            sorted = true;
+            lastCamLocation.set(camLocation);
+            lastCamLookAt.set(camLookAt);
+        }
+
+        // The inactive particles follow the sorted ones
+        for (int i = 0; i < particles.length; i++) {
+            if (!particles[i].active) {
+                order[count++] = i;
+            }
+        }
+
+        return order;
+    }
+
+    private void resize(int size) {
+        order = new int[size];
+        orderSwap = new int[size];
+        keys = new int[size];
+        keysSwap = new int[size];
+        included = new boolean[size];
+        lastEmitCount = new int[size];
+        activeCount = 0;
+        sorted = false;
+    }
+
+    /**
+     * Sorts the particles starting from their existing order. This gives up if too
+     * many particles are out of place, as the radix sort will then be faster.
+     * 
+     * @return true if the particles are now sorted
+     */
+    private boolean insertionSort(int count) {
+        int moves = 0;
+        for (int i = 1; i < count; i++) {
+            int key = keys[i];
+            int index = order[i];
+            int j = i - 1;
+            // The keys are ordered as unsigned ints, as the radix sort treats them,
+            // so flip the sign bits to compare them as signed ints
+            while (j >= 0 && (keys[j] ^ Integer.MIN_VALUE) > (key ^ Integer.MIN_VALUE)) {
+                keys[j + 1] = keys[j];
+                order[j + 1] = order[j];
+                j--;
+                moves++;
+            }
+            keys[j + 1] = key;
+            order[j + 1] = index;
+            if (moves > count) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A least significant byte first radix sort of the keys, moving the order with them.
+     */
+    private void radixSort(int count) {
+        if (count < 2) {
+            return;
+        }
+        int[] h = histogram;
+        for (int i = 0; i < h.length; i++) {
+            h[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int key = keys[i];
+            h[key & 0xFF]++;
+            h[256 + ((key >>> 8) & 0xFF)]++;
+            h[512 + ((key >>> 16) & 0xFF)]++;
+            h[768 + (key >>> 24)]++;
+        }
+
+        int[] srcKeys = keys, dstKeys = keysSwap;
+        int[] srcOrder = order, dstOrder = orderSwap;
+
+        for (int pass = 0; pass < 4; pass++) {
+            int base = pass * 256;
+            int shift = pass * 8;
+
+            // If every key has the same value for this byte the pass changes nothing
+            if (h[base + ((srcKeys[0] >>> shift) & 0xFF)] == count) {
+                continue;
+            }
+
+            int offset = 0;
+            for (int i = 0; i < 256; i++) {
+                int c = h[base + i];
+                h[base + i] = offset;
+                offset += c;
+            }
+
+            for (int i = 0; i < count; i++) {
+                int key = srcKeys[i];
+                int dest = h[base + ((key >>> shift) & 0xFF)]++;
+                dstKeys[dest] = key;
+                dstOrder[dest] = srcOrder[i];
+            }
+
+            int[] swap = srcKeys; srcKeys = dstKeys; dstKeys = swap;
+            swap = srcOrder; srcOrder = dstOrder; dstOrder = swap;
+        }
+
+        keys = srcKeys;
+        keysSwap = dstKeys;
+        order = srcOrder;
+        orderSwap = dstOrder;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The ParticleMaterialCache shares particle materials between meshes. The meshes
+ * constructed from an AssetManager and texture path all use the same Material for
+ * the same texture and render options, rather than each creating their own, which
+ * saves the material setup when many effects are created and lets the renderer
+ * draw them without switching state.
+ * 
+ * As the material is shared, changing it through ParticleMesh.getMaterial() changes
+ * it for every mesh using that texture. Construct the mesh with its own material if
+ * it needs different settings.
+ * 
+ * The materials are held for as long as the AssetManager they were loaded with, or
+ * until clear() is called.
+ */
+public class ParticleMaterialCache {
+
+    private static final Map<AssetManager, Map<Key, Material>> materials = new WeakHashMap<AssetManager, Map<Key, Material>>();
+
+    private ParticleMaterialCache() {
+    }
+
+    /**
+     * Get the particle material for the given texture, creating it the first time
+     * it is asked for. The material uses Particle.j3md with face culling turned off.
+     * 
+     * @param assetManager The AssetManager to load the material and texture with
+     * @param texturePath The path of the sprite texture
+     * @param pointSprite true if the material is for point sprites
+     * @return The shared material
+     */
+    public static synchronized Material getMaterial(AssetManager assetManager, String texturePath, boolean pointSprite) {
+        Map<Key, Material> cache = materials.get(assetManager);
+        if (cache == null) {
+            cache = new HashMap<Key, Material>();
+            materials.put(assetManager, cache);
+        }
+
+        Key key = new Key(texturePath, pointSprite);
+        Material material = cache.get(key);
+        if (material == null) {
+            material = new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md");
+            material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
+            material.setTexture("Texture", assetManager.loadTexture(texturePath));
+            if (pointSprite) {
+                material.setBoolean("PointSprite", true);
+            }
+            cache.put(key, material);
+        }
+        return material;
+    }
+
+    /**
+     * Forget all of the cached materials, so that meshes constructed afterwards get
+     * new ones. Meshes already using a material keep it.
+     */
+    public static synchronized void clear() {
+        materials.clear();
+    }
+
+    private static class Key {
+
+        private final String texturePath;
+        private final boolean pointSprite;
+
+        Key(String texturePath, boolean pointSprite) {
+            this.texturePath = texturePath;
+            this.pointSprite = pointSprite;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return pointSprite == other.pointSprite && texturePath.equals(other.texturePath);
+        }
+
+        @Override
+        public int hashCode() {
+            return texturePath.hashCode() * 2 + (pointSprite ? 1 : 0);
+        }
+    }
+}
@@ -31,9 +31,23 @@
  */
 package com.jme3.particles;
 
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingVolume;
 import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * The ParticleMesh is used to build various mesh solutions to display the particle
@@ -46,6 +60,52 @@ public abstract class ParticleMesh extends Mesh {
     protected int spriteCols;
     protected int spriteRows;
     protected boolean uniqueTexCoords;
+    private float regionStartX = 0;
+    private float regionStartY = 0;
+    private float regionEndX = 1;
+    private float regionEndY = 1;
+
+    /**
+     * The texture coordinates of each sprite, indexed by sprite index. Each sprite
+     * takes four entries: startX, startY, endX, endY.
+     */
+    protected float[] spriteUVs;
+
+    /**
+     * The same table as spriteUVs but stored as normalized unsigned shorts, for
+     * use when the texture coordinates are stored in UnsignedShort format.
+     */
+    protected short[] spriteUVShorts;
+
+    /**
+     * The value of a texture coordinate of 1 when stored as a normalized unsigned short.
+     */
+    protected static final short UV_ONE = (short) 0xFFFF;
+
+    protected VertexBuffer.Format texCoordFormat = VertexBuffer.Format.Float;
+
+    protected boolean interleavedLayout;
+    private int interleavedVertexCount;
+    private int interleavedTriangleCount;
+    // The bound worked out from the particles by updateParticleBound()
+    protected final Vector3f boundMin = new Vector3f();
+    protected final Vector3f boundMax = new Vector3f();
+
+    protected ParticleDepthSorter depthSorter;
+    private int[] unsortedOrder;
+
+    /**
+     * Ranges smaller than this are not worth handing to another thread.
+     */
+    private static final int MIN_FILL_RANGE = 1024;
+
+    protected ExecutorService fillExecutor;
+    protected int fillTasks = 1;
+    private final List<Future<?>> fillFutures = new ArrayList<Future<?>>();
+
+    // An int view of the color buffer, and the buffer it was made from
+    private IntBuffer colorInts;
+    private ByteBuffer colorIntsSource;
 
     /**
      * Construct a new particle mesh which will use the provided material to display
@@ -58,7 +118,9 @@ public abstract class ParticleMesh extends Mesh {
     }
 
     /**
-     * Set the number of columns and rows in the particle texture.
+     * Set the number of columns and rows in the particle texture. This also
+     * builds the table of texture coordinates for each sprite so that the meshes
+     * can look them up rather than calculating them for every particle.
      * 
      * @param columns The number of columns
      * @param rows The number of rows
@@ -66,7 +128,252 @@ public abstract class ParticleMesh extends Mesh {
     public final void setSpriteColumsAndRows(int columns, int rows) {
         this.spriteCols = columns;
         this.spriteRows = rows;
-        uniqueTexCoords = columns != 1 || rows != 1;
+        boolean wholeTexture = regionStartX == 0 && regionStartY == 0 && regionEndX == 1 && regionEndY == 1;
+        uniqueTexCoords = columns != 1 || rows != 1 || !wholeTexture;
+
+        // The sprites are spread across the texture region
+        float regionWidth = regionEndX - regionStartX;
+        float regionHeight = regionEndY - regionStartY;
+
+        spriteUVs = new float[columns * rows * 4];
+        int i = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                spriteUVs[i++] = regionStartX + regionWidth * ((float) col / columns);
+                spriteUVs[i++] = regionStartY + regionHeight * ((float) row / rows);
+                spriteUVs[i++] = regionStartX + regionWidth * ((float) (col + 1) / columns);
+                spriteUVs[i++] = regionStartY + regionHeight * ((float) (row + 1) / rows);
+            }
+        }
+
+        spriteUVShorts = new short[spriteUVs.length];
+        for (i = 0; i < spriteUVs.length; i++) {
+            spriteUVShorts[i] = (short) Math.round(spriteUVs[i] * 0xFFFF);
+        }
+    }
+
+    /**
+     * Set the part of the texture that holds the sprites, for example when the
+     * sprites for this mesh have been packed into a ParticleTextureAtlas with
+     * those of other meshes. The sprite columns and rows are spread over this
+     * region rather than the whole texture. The default is the whole texture,
+     * from 0,0 to 1,1.
+     * 
+     * This must be set before the mesh is used by a ParticleController. Meshes that
+     * copy their texture coordinates from elsewhere (such as TemplateMesh) ignore
+     * the region, and meshes that wrap others (such as LodMesh) pass it on.
+     * 
+     * @param startX The texture coordinate of the left edge of the region
+     * @param startY The texture coordinate of the bottom edge of the region
+     * @param endX The texture coordinate of the right edge of the region
+     * @param endY The texture coordinate of the top edge of the region
+     */
+    public void setTextureRegion(float startX, float startY, float endX, float endY) {
+        this.regionStartX = startX;
+        this.regionStartY = startY;
+        this.regionEndX = endX;
+        this.regionEndY = endY;
+        setSpriteColumsAndRows(spriteCols, spriteRows);
+    }
+
+    /**
+     * Set the format in which texture coordinates are sent to the GPU. The default
+     * is Float. UnsignedShort stores each coordinate as a normalized short which
+     * halves the size of the texture coordinate buffer, at the cost of a very small
+     * loss of precision that is not visible for normal sprite sheets.
+     * 
+     * This must be set before the mesh is used by a ParticleController. Meshes that
+     * copy their texture coordinates from elsewhere (such as TemplateMesh) always
+     * use Float.
+     * 
+     * @param format Either VertexBuffer.Format.Float or VertexBuffer.Format.UnsignedShort
+     */
+    public void setTexCoordFormat(VertexBuffer.Format format) {
+        if (format != VertexBuffer.Format.Float && format != VertexBuffer.Format.UnsignedShort) {
+            throw new IllegalArgumentException("Texture coordinates can only be stored as Float or UnsignedShort, not "+format);
+        }
+        this.texCoordFormat = format;
+    }
+
+    /**
+     * 
+     * @return The format in which texture coordinates are sent to the GPU
+     */
+    public VertexBuffer.Format getTexCoordFormat() {
+        return texCoordFormat;
+    }
+
+    /**
+     * Set whether the per-vertex data is stored in a single interleaved buffer rather
+     * than one buffer per attribute. Interleaving means each frame is one sequential
+     * write and one upload to the GPU rather than one for each attribute.
+     * 
+     * When interleaved the individual attribute buffers hold no data of their own,
+     * so anything that reads the mesh data back (for example collision against the
+     * particle geometry) will not work.
+     * 
+     * This must be set before the mesh is used by a ParticleController. Meshes that
+     * do not support interleaving (such as TemplateMesh) ignore it.
+     * 
+     * @param interleavedLayout true to use a single interleaved buffer
+     */
+    public void setInterleavedLayout(boolean interleavedLayout) {
+        this.interleavedLayout = interleavedLayout;
+    }
+
+    /**
+     * 
+     * @return true if the per-vertex data is stored in a single interleaved buffer
+     */
+    public boolean isInterleavedLayout() {
+        return interleavedLayout;
+    }
+
+    /**
+     * Sets up an attribute whose data is read from the interleaved buffer rather
+     * than from a buffer of its own.
+     * 
+     * @param type The attribute being set up
+     * @param components The number of components in each vertex
+     * @param format The format of each component
+     * @param normalized Whether integer formats should be normalized
+     * @param offset The offset in bytes of this attribute within each vertex
+     * @param stride The size in bytes of each vertex
+     */
+    protected void setupInterleavedAttribute(VertexBuffer.Type type, int components, VertexBuffer.Format format, boolean normalized, int offset, int stride) {
+        VertexBuffer buf = getBuffer(type);
+        if (buf == null) {
+            buf = new VertexBuffer(type);
+            buf.setupData(VertexBuffer.Usage.Stream, components, format, BufferUtils.createByteBuffer(0));
+            setBuffer(buf);
+        }
+        buf.setNormalized(normalized);
+        buf.setOffset(offset);
+        buf.setStride(stride);
+        buf.updateData(null);
+    }
+
+    /**
+     * Creates the interleaved buffer. This must be called after all the attributes
+     * have been set up with setupInterleavedAttribute().
+     * 
+     * @param size The size in bytes of the buffer
+     * @return The newly created buffer
+     */
+    protected ByteBuffer setupInterleavedData(int size) {
+        ByteBuffer data = BufferUtils.createByteBuffer(size);
+        VertexBuffer buf = getBuffer(VertexBuffer.Type.InterleavedData);
+        if (buf != null) {
+            buf.updateData(data);
+        } else {
+            buf = new VertexBuffer(VertexBuffer.Type.InterleavedData);
+            buf.setupData(VertexBuffer.Usage.Stream, 1, VertexBuffer.Format.UnsignedByte, data);
+            setBuffer(buf);
+        }
+        return data;
+    }
+
+    /**
+     * The attribute buffers of an interleaved mesh have no data for the Mesh to count
+     * or compute the bound from, so implementations record them here instead each
+     * time the interleaved buffer is filled.
+     * 
+     * @param vertexCount The number of vertices to draw
+     * @param triangleCount The number of triangles to draw
+     */
+    protected void updateInterleavedCounts(int vertexCount, int triangleCount) {
+        this.interleavedVertexCount = vertexCount;
+        this.interleavedTriangleCount = triangleCount;
+    }
+
+    /**
+     * Gets how far the vertices of a particle can be from its position, for a
+     * particle of size 1. This is used to work out the bound of the mesh from the
+     * particles. The default is 1.
+     * 
+     * @return The radius of a particle of size 1
+     */
+    protected float getParticleRadius() {
+        return 1;
+    }
+
+    /**
+     * Called every frame once the particles have been updated, before the bound is
+     * worked out. Unlike updateParticleData() this is called whether or not the
+     * particles are displayed, so meshes that build up state over time, such as
+     * the paths of the particles, should record it here. The default
+     * implementation does nothing.
+     * 
+     * @param controller The controller whose particles are displayed by this mesh
+     */
+    public void particlesUpdated(ParticleController controller) {
+    }
+
+    /**
+     * Works out the bound of the mesh from the particles themselves rather than
+     * from the vertex data. The controller calls this every frame so that the
+     * geometry can be culled before the mesh has been filled, updateBound() then
+     * uses the result.
+     * 
+     * @param controller The controller whose particles are displayed by this mesh
+     */
+    public void updateParticleBound(ParticleController controller) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        float radius = getParticleRadius();
+
+        ParticleData[] particles = controller.getParticles();
+        for (int i = 0; i < particles.length; i++) {
+            ParticleData p = particles[i];
+            if (p.active) {
+                float extent = p.size * radius;
+                float x = p.position.x, y = p.position.y, z = p.position.z;
+                minX = Math.min(minX, x - extent);
+                minY = Math.min(minY, y - extent);
+                minZ = Math.min(minZ, z - extent);
+                maxX = Math.max(maxX, x + extent);
+                maxY = Math.max(maxY, y + extent);
+                maxZ = Math.max(maxZ, z + extent);
+            }
+        }
+
+        boundMin.set(minX, minY, minZ);
+        boundMax.set(maxX, maxY, maxZ);
+    }
+
+    @Override
+    public void updateCounts() {
+        if (!interleavedLayout) {
+            super.updateCounts();
+        }
+    }
+
+    @Override
+    public int getVertexCount() {
+        return interleavedLayout ? interleavedVertexCount : super.getVertexCount();
+    }
+
+    @Override
+    public int getTriangleCount() {
+        return interleavedLayout ? interleavedTriangleCount : super.getTriangleCount();
+    }
+
+    @Override
+    public void updateBound() {
+        BoundingVolume bound = getBound();
+        if (!(bound instanceof BoundingBox)) {
+            // The interleaved data cannot be read back to compute other kinds of bound
+            if (!interleavedLayout) {
+                super.updateBound();
+            }
+            return;
+        }
+        if (boundMin.x > boundMax.x) {
+            // There are no active particles
+            ((BoundingBox) bound).setMinMax(Vector3f.ZERO, Vector3f.ZERO);
+        } else {
+            ((BoundingBox) bound).setMinMax(boundMin, boundMax);
+        }
     }
 
     /**
@@ -81,6 +388,265 @@ public abstract class ParticleMesh extends Mesh {
      */
     public int getSpriteRows() { return this.spriteRows; }
 
+    /**
+     * 
+     * @return The total number of sprites in the texture
+     */
+    public int getSpriteCount() { return this.spriteCols * this.spriteRows; }
+
+    /**
+     * Wraps a sprite index round onto the given number of sprites. A particle can
+     * hold an index past the end of the sheet, for example when the sheet is made
+     * smaller after the particle was emitted, so indices are wrapped before they
+     * are used to look anything up.
+     * 
+     * @param spriteIndex The sprite index held by the particle
+     * @param spriteCount The number of sprites to wrap onto
+     * @return The index wrapped into the range 0 to spriteCount - 1
+     */
+    protected static int wrapSpriteIndex(int spriteIndex, int spriteCount) {
+        if (spriteIndex >= 0 && spriteIndex < spriteCount) {
+            return spriteIndex;
+        }
+        int wrapped = spriteIndex % spriteCount;
+        return wrapped < 0 ? wrapped + spriteCount : wrapped;
+    }
+
+    /**
+     * @param spriteIndex The sprite index held by the particle
+     * @return The position of the sprite in the spriteUVs and spriteUVShorts tables
+     */
+    protected final int getSpriteUVOffset(int spriteIndex) {
+        return wrapSpriteIndex(spriteIndex, spriteUVs.length / 4) * 4;
+    }
+
+    /**
+     * Set the sorter used to write the particles into the mesh from furthest to
+     * nearest the camera, which is needed for alpha blended particles to display
+     * correctly. The default is null, in which case particles are written in the
+     * order they are stored in the controller.
+     * 
+     * @param depthSorter The sorter to use, or null to not sort the particles
+     */
+    public void setDepthSorter(ParticleDepthSorter depthSorter) {
+        this.depthSorter = depthSorter;
+    }
+
+    /**
+     * @return The sorter used to order the particles, or null if they are not sorted
+     */
+    public ParticleDepthSorter getDepthSorter() {
+        return depthSorter;
+    }
+
+    /**
+     * @return true if the data written by updateParticleData() depends on the
+     * camera, in which case the mesh is filled again for each camera the particles
+     * are displayed on. Otherwise the mesh is filled once a frame however many
+     * viewports it is shown in. The default is true only when depth sorting.
+     */
+    public boolean isCameraDependent() {
+        return depthSorter != null;
+    }
+
+    /**
+     * Called each time the particles are about to be displayed on a camera, before
+     * updateParticleData() if the mesh is being filled. Anything that depends only
+     * on the camera rather than the particles, such as material parameters, should
+     * be updated here. The default implementation does nothing.
+     * 
+     * @param cam The camera the particles are about to be displayed on
+     * @param controller The controller whose particles are displayed by this mesh
+     */
+    public void updateCamera(Camera cam, ParticleController controller) {
+    }
+
+    /**
+     * Gets the order in which the particles should be written into the mesh.
+     * 
+     * @return The index of every particle in the controller, in the order to
+     * write them. The array is reused so must not be kept between frames.
+     */
+    protected int[] getDrawOrder(Camera cam, ParticleController controller) {
+        if (depthSorter != null && cam != null) {
+            return depthSorter.sort(cam, controller);
+        }
+        int count = controller.getParticles().length;
+        if (unsortedOrder == null || unsortedOrder.length != count) {
+            unsortedOrder = new int[count];
+            for (int i = 0; i < count; i++) {
+                unsortedOrder[i] = i;
+            }
+        }
+        return unsortedOrder;
+    }
+
+    /**
+     * Set the executor used to fill the mesh buffers in parallel. The particles are
+     * split into up to the given number of ranges, each of which is written into
+     * its own part of the buffers by a separate task. The buffers are then sent
+     * to the GPU once all of the tasks have finished. The executor can be shared
+     * between many meshes.
+     * 
+     * Only meshes with a large number of particles benefit from this, small meshes
+     * are still filled on the calling thread. Any QuadMeshBillboardStrategy used
+     * with a parallel fill must be safe to call from several threads at once.
+     * 
+     * @param executor The executor to run the fill tasks on, or null to fill on the
+     * calling thread
+     * @param tasks The maximum number of tasks to split the fill between, usually
+     * the number of threads in the executor
+     */
+    public void setParallelFill(ExecutorService executor, int tasks) {
+        if (tasks < 1) {
+            throw new IllegalArgumentException("At least one fill task is required");
+        }
+        this.fillExecutor = executor;
+        this.fillTasks = tasks;
+    }
+
+    /**
+     * @return The executor used to fill the mesh buffers, or null if the mesh is
+     * filled on the calling thread
+     */
+    public ExecutorService getFillExecutor() {
+        return fillExecutor;
+    }
+
+    /**
+     * @return The maximum number of tasks the mesh fill is split between
+     */
+    public int getFillTasks() {
+        return fillTasks;
+    }
+
+    /**
+     * A range of particles to be written into the mesh. Implementations must only
+     * write to the parts of the buffers belonging to their range, either with
+     * absolute puts or through getTaskBuffer() so that tasks do not share the
+     * buffer positions.
+     */
+    protected interface FillRange {
+
+        /**
+         * @param task The number of the task, from 0 to getFillTasks() - 1, which
+         * can be used to select working storage for the task
+         * @param start The first particle to write
+         * @param end One past the last particle to write
+         */
+        public void fill(int task, int start, int end);
+    }
+
+    /**
+     * Splits the particles into ranges and fills each of them, in parallel if a
+     * fill executor has been set. The first range is filled on the calling thread
+     * and this returns once all of the ranges are done.
+     * 
+     * @param count The number of particles to fill
+     * @param range The fill to run for each range
+     */
+    protected void fillRanges(int count, FillRange range) {
+        int tasks = fillExecutor == null ? 1 : Math.min(fillTasks, count / MIN_FILL_RANGE);
+        if (tasks <= 1) {
+            range.fill(0, 0, count);
+            return;
+        }
+
+        int step = (count + tasks - 1) / tasks;
+        int task = 1;
+        for (int start = step; start < count; start += step) {
+            fillFutures.add(fillExecutor.submit(new FillTask(range, task++, start, Math.min(start + step, count))));
+        }
+
+        try {
+            range.fill(0, 0, step);
+        } finally {
+            // Always wait for the other tasks so none are still writing to the buffers
+            Throwable failure = null;
+            boolean interrupted = false;
+            for (int i = 0; i < fillFutures.size(); i++) {
+                Future<?> future = fillFutures.get(i);
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    } catch (ExecutionException ex) {
+                        failure = ex.getCause();
+                        break;
+                    }
+                }
+            }
+            fillFutures.clear();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Parallel mesh fill failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Gets the buffer a fill task should write its range through. The first task
+     * runs on the calling thread so can use the buffer itself, the others each need
+     * a duplicate so that they do not share the buffer position.
+     */
+    protected static FloatBuffer getTaskBuffer(FloatBuffer buffer, int task) {
+        return task == 0 ? buffer : buffer.duplicate();
+    }
+
+    /**
+     * @see #getTaskBuffer(java.nio.FloatBuffer, int)
+     */
+    protected static IntBuffer getTaskBuffer(IntBuffer buffer, int task) {
+        return task == 0 ? buffer : buffer.duplicate();
+    }
+
+    /**
+     * @see #getTaskBuffer(java.nio.FloatBuffer, int)
+     */
+    protected static ShortBuffer getTaskBuffer(ShortBuffer buffer, int task) {
+        return task == 0 ? buffer : buffer.duplicate();
+    }
+
+    /**
+     * Gets an int view of the color buffer so that the colors can be written in
+     * bulk, one packed RGBA int per vertex. The view is kept until the buffer
+     * changes.
+     * 
+     * @param colors The color buffer
+     * @return The int view, cleared ready to be written from the start
+     */
+    protected IntBuffer getColorInts(ByteBuffer colors) {
+        if (colorInts == null || colorIntsSource != colors) {
+            colorInts = colors.asIntBuffer();
+            colorIntsSource = colors;
+        }
+        colorInts.clear();
+        return colorInts;
+    }
+
+    private static class FillTask implements Runnable {
+
+        private final FillRange range;
+        private final int task;
+        private final int start;
+        private final int end;
+
+        FillTask(FillRange range, int task, int start, int end) {
+            this.range = range;
+            this.task = task;
+            this.start = start;
+            this.end = end;
+        }
+
+        public void run() {
+            range.fill(task, start, end);
+        }
+    }
+
     public Material getMaterial() {
         return material;
     }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.math.ColorRGBA;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ImageRaster;
+import com.jme3.util.BufferUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ParticleTextureAtlas packs the textures of several particle effects into a
+ * single texture, so that the effects can all share one material instead of each
+ * needing their own.
+ * 
+ * Add each texture, call build() and then use apply() to point each mesh at its
+ * part of the atlas. The sprite columns and rows of each mesh are then laid out
+ * within that part rather than across the whole texture. For example:
+ * 
+ * <pre>
+ * ParticleTextureAtlas atlas = new ParticleTextureAtlas(1024, 1024);
+ * atlas.addTexture(assetManager, "Effects/Fire.png");
+ * atlas.addTexture(assetManager, "Effects/Smoke.png");
+ * atlas.build();
+ * Material material = atlas.createMaterial(assetManager);
+ * 
+ * QuadMesh fire = new QuadMesh(QuadMeshBillboardStrategy.CAMERA, material, 2, 2);
+ * atlas.apply(fire, "Effects/Fire.png");
+ * </pre>
+ * 
+ * Each texture is surrounded by a border copied from its edge pixels so that
+ * filtering does not bleed the neighbouring textures into it.
+ */
+public class ParticleTextureAtlas {
+
+    /**
+     * The part of the atlas holding one of the textures.
+     */
+    public static class Region {
+
+        private final String name;
+        private final Image image;
+        private int x;
+        private int y;
+
+        private Region(String name, Image image) {
+            this.name = name;
+            this.image = image;
+        }
+
+        /**
+         * @return The name the texture was added with
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The x position of the texture in the atlas, in pixels
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * @return The y position of the texture in the atlas, in pixels
+         */
+        public int getY() {
+            return y;
+        }
+
+        /**
+         * @return The width of the texture in pixels
+         */
+        public int getWidth() {
+            return image.getWidth();
+        }
+
+        /**
+         * @return The height of the texture in pixels
+         */
+        public int getHeight() {
+            return image.getHeight();
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int padding;
+    private final Map<String, Region> regions = new HashMap<String, Region>();
+    private final List<Region> order = new ArrayList<Region>();
+    private Texture2D texture;
+
+    /**
+     * Construct a new atlas of the given size with a 2 pixel border around each
+     * texture.
+     * 
+     * @param width The width of the atlas in pixels
+     * @param height The height of the atlas in pixels
+     */
+    public ParticleTextureAtlas(int width, int height) {
+        this(width, height, 2);
+    }
+
+    /**
+     * Construct a new atlas of the given size.
+     * 
+     * @param width The width of the atlas in pixels
+     * @param height The height of the atlas in pixels
+     * @param padding The width of the border around each texture in pixels
+     */
+    public ParticleTextureAtlas(int width, int height, int padding) {
+        this.width = width;
+        this.height = height;
+        this.padding = padding;
+    }
+
+    /**
+     * Load a texture and add it to the atlas, using the texture path as its name.
+     * 
+     * @param assetManager The AssetManager to use
+     * @param texturePath The path of the texture to add
+     */
+    public void addTexture(AssetManager assetManager, String texturePath) {
+        addTexture(texturePath, assetManager.loadTexture(texturePath).getImage());
+    }
+
+    /**
+     * Add an image to the atlas.
+     * 
+     * @param name The name to look the image up by
+     * @param image The image to add
+     */
+    public void addTexture(String name, Image image) {
+        if (texture != null) {
+            throw new IllegalStateException("The atlas has already been built");
+        }
+        if (regions.containsKey(name)) {
+            throw new IllegalArgumentException("The atlas already contains " + name);
+        }
+        Region region = new Region(name, image);
+        regions.put(name, region);
+        order.add(region);
+    }
+
+    /**
+     * Packs all of the textures added into the atlas texture.
+     * 
+     * @return The atlas texture
+     */
+    public Texture2D build() {
+        if (texture != null) {
+            throw new IllegalStateException("The atlas has already been built");
+        }
+
+        // Pack onto shelves, tallest first so that each shelf wastes little space
+        List<Region> sorted = new ArrayList<Region>(order);
+        Collections.sort(sorted, new Comparator<Region>() {
+            public int compare(Region a, Region b) {
+                return b.getHeight() - a.getHeight();
+            }
+        });
+
+        int shelfX = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        for (Region region : sorted) {
+            int w = region.getWidth() + padding * 2;
+            int h = region.getHeight() + padding * 2;
+            if (shelfX + w > width) {
+                shelfY += shelfHeight;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            if (w > width || shelfY + h > height) {
+                throw new IllegalStateException("The textures do not fit in a " + width + "x" + height + " atlas");
+            }
+            region.x = shelfX + padding;
+            region.y = shelfY + padding;
+            shelfX += w;
+            shelfHeight = Math.max(shelfHeight, h);
+        }
+
+        Image atlas = new Image(Image.Format.RGBA8, width, height, BufferUtils.createByteBuffer(width * height * 4));
+        ImageRaster target = ImageRaster.create(atlas);
+        ColorRGBA color = new ColorRGBA();
+        for (Region region : order) {
+            ImageRaster source = ImageRaster.create(region.image);
+            int w = region.getWidth();
+            int h = region.getHeight();
+            // Copy the image including its border, which repeats the edge pixels
+            for (int y = -padding; y < h + padding; y++) {
+                int sourceY = Math.max(0, Math.min(h - 1, y));
+                for (int x = -padding; x < w + padding; x++) {
+                    int sourceX = Math.max(0, Math.min(w - 1, x));
+                    source.getPixel(sourceX, sourceY, color);
+                    target.setPixel(region.x + x, region.y + y, color);
+                }
+            }
+        }
+
+        texture = new Texture2D(atlas);
+        return texture;
+    }
+
+    /**
+     * @return The atlas texture, or null if it has not been built yet
+     */
+    public Texture2D getTexture() {
+        return texture;
+    }
+
+    /**
+     * @param name The name the texture was added with
+     * @return The part of the atlas holding the texture, or null if there is no
+     * texture with that name
+     */
+    public Region getRegion(String name) {
+        return regions.get(name);
+    }
+
+    /**
+     * Sets the mesh to take its sprites from the given texture within the atlas.
+     * 
+     * @param mesh The mesh to update
+     * @param name The name the texture was added with
+     */
+    public void apply(ParticleMesh mesh, String name) {
+        if (texture == null) {
+            throw new IllegalStateException("The atlas has not been built");
+        }
+        Region region = regions.get(name);
+        if (region == null) {
+            throw new IllegalArgumentException("The atlas does not contain " + name);
+        }
+        mesh.setTextureRegion(
+                (float) region.x / width,
+                (float) region.y / height,
+                (float) (region.x + region.getWidth()) / width,
+                (float) (region.y + region.getHeight()) / height);
+    }
+
+    /**
+     * Creates a particle material using the atlas texture, which can be shared by
+     * all of the meshes using the atlas.
+     * 
+     * @param assetManager The AssetManager to use
+     * @return The material
+     */
+    public Material createMaterial(AssetManager assetManager) {
+        if (texture == null) {
+            throw new IllegalStateException("The atlas has not been built");
+        }
+        Material material = new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md");
+        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
+        material.setTexture("Texture", texture);
+        return material;
+    }
+}
@@ -36,6 +36,7 @@ import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.export.OutputCapsule;
 import com.jme3.math.ColorRGBA;
+import com.jme3.particles.BatchParticleInfluencer;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleInfluencer;
@@ -45,7 +46,7 @@ import java.io.IOException;
  * The ColorInfluencer interpolates the particle from one color to another
  * over the course of its lifetime.
  */
-public class ColorInfluencer implements ParticleInfluencer {
+public class ColorInfluencer implements BatchParticleInfluencer {
 
     private ColorRGBA startColor = new ColorRGBA().set(ColorRGBA.Red);
     private ColorRGBA endColor = new ColorRGBA().set(ColorRGBA.Yellow);
@@ -154,6 +155,14 @@ public class ColorInfluencer implements ParticleInfluencer {
         data.color.set(startColor);
     }
 
+    @Override
+    public void influenceParticleCreation(ParticleController ctrl, int[] indices, int count) {
+        ParticleData[] particles = ctrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            particles[indices[i]].color.set(startColor);
+        }
+    }
+
     @Override
     public void influenceParticle(ParticleController ctrl, int index, ParticleData data, float tpf) {
         data.color.interpolate(startColor, endColor, data.lifeProgress);
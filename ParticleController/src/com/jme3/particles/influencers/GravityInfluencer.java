@@ -36,6 +36,7 @@ import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.export.OutputCapsule;
 import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleInfluencer;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleInfluencer;
@@ -47,7 +48,7 @@ import java.io.IOException;
  * space and not in world space. If the particle mesh is rotated or scaled then 
  * so will gravity effects be.
  */
-public class GravityInfluencer implements ParticleInfluencer {
+public class GravityInfluencer implements BatchParticleInfluencer {
 
     private Vector3f gravity = new Vector3f(0, -1f, 0);
 
@@ -113,6 +114,10 @@ public class GravityInfluencer implements ParticleInfluencer {
     public void influenceParticleCreation(ParticleController ctrl, int index, ParticleData data) {
     }
 
+    @Override
+    public void influenceParticleCreation(ParticleController ctrl, int[] indices, int count) {
+    }
+
     @Override
     public void influenceParticle(ParticleController ctrl, int index, ParticleData data, float tpf) {
         data.velocity.x += gravity.x * tpf;
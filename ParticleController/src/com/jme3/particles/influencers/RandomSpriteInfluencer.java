@@ -47,8 +47,7 @@ public class RandomSpriteInfluencer implements ParticleInfluencer {
     
     @Override
     public void influenceParticleCreation(ParticleController ctrl, int index, ParticleData data) {
-        data.spriteCol = FastMath.nextRandomInt(0, ctrl.getMesh().getSpriteCols()-1);
-        data.spriteRow = FastMath.nextRandomInt(0, ctrl.getMesh().getSpriteRows()-1);
+        data.spriteIndex = FastMath.nextRandomInt(0, ctrl.getMesh().getSpriteCount()-1);
     }
 
     @Override
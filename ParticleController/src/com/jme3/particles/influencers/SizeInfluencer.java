@@ -36,6 +36,7 @@ import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.export.OutputCapsule;
 import com.jme3.math.FastMath;
+import com.jme3.particles.BatchParticleInfluencer;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleInfluencer;
@@ -45,7 +46,7 @@ import java.io.IOException;
  * The SizeInfluencer modifies the size of a particle over the course of its
  * lifetime.
  */
-public class SizeInfluencer implements ParticleInfluencer {
+public class SizeInfluencer implements BatchParticleInfluencer {
 
     private float startSize = 1;
     private float endSize = 0;
@@ -117,6 +118,14 @@ public class SizeInfluencer implements ParticleInfluencer {
         data.size = startSize;
     }
 
+    @Override
+    public void influenceParticleCreation(ParticleController ctrl, int[] indices, int count) {
+        ParticleData[] particles = ctrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            particles[indices[i]].size = startSize;
+        }
+    }
+
     @Override
     public void influenceParticle(ParticleController ctrl, int index, ParticleData data, float tpf) {
         data.size = FastMath.interpolateLinear(data.lifeProgress, startSize, endSize);
@@ -139,22 +139,21 @@ public class SpriteAnimationInfluencer implements ParticleInfluencer {
     
     @Override
     public void influenceParticleCreation(ParticleController ctrl, int index, ParticleData data) {
-        data.spriteCol = 0;
-        data.spriteRow = 0;
+        data.spriteIndex = 0;
     }
 
     @Override
     public void influenceParticle(ParticleController ctrl, int index, ParticleData data, float tpf) {
         int frameNumber = (int)((data.startlife - data.life)/timePerFrame);
-        int cols = ctrl.getMesh().getSpriteCols();
-        int limit = cols * ctrl.getMesh().getSpriteRows();
-        if (cycle) {
-            frameNumber %= limit;
-        } else if (frameNumber >= limit) {
-            frameNumber = limit-1;
+        int limit = ctrl.getMesh().getSpriteCount();
+        if (frameNumber >= limit) {
+            if (cycle) {
+                frameNumber %= limit;
+            } else {
+                frameNumber = limit-1;
+            }
         }
-        data.spriteCol = frameNumber % cols;
-        data.spriteRow = frameNumber / cols;
+        data.spriteIndex = frameNumber;
     }
 
     @Override
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleMesh;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * This class implements ParticleMesh and draws each particle as a line streaked
+ * back along its direction of travel, which suits sparks and tracers.
+ * 
+ * Each particle is two vertices, one at the particle position and one at the
+ * position minus the velocity multiplied by the stretch. The color fades along
+ * the line towards the tail. No billboarding is needed so this is much cheaper
+ * than a QuadMesh using the VELOCITY strategy, but the lines are always the
+ * width set with setLineWidth() in pixels and the particle size and sprites are
+ * not used.
+ * 
+ * The interleaved layout and texture coordinate format settings do not apply to
+ * a LineMesh.
+ */
+public class LineMesh extends ParticleMesh {
+
+    /**
+     * The number of particles written into the staging arrays before they are
+     * copied into the buffers.
+     */
+    private static final int STAGING_PARTICLES = 256;
+
+    private float stretch = 0.1f;
+    private float tailAlpha = 0;
+
+    private final float[] stagingPositions = new float[STAGING_PARTICLES * 6];
+    private final int[] stagingColors = new int[STAGING_PARTICLES * 2];
+
+    /**
+     * Construct a new LineMesh that colors the lines using the particle colors.
+     * 
+     * @param assetManager The AssetManager to use.
+     */
+    public LineMesh(AssetManager assetManager) {
+        super(new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md"), 1, 1);
+        material.setBoolean("VertexColor", true);
+        material.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+    }
+
+    /**
+     * Construct a new LineMesh which will use the supplied material. The material
+     * should use the vertex colors.
+     * 
+     * @param material The material to use
+     */
+    public LineMesh(Material material) {
+        super(material, 1, 1);
+    }
+
+    /**
+     * @return How far back along the velocity the tail of each line is, in seconds
+     */
+    public float getStretch() {
+        return stretch;
+    }
+
+    /**
+     * Set the length of the lines. The tail of each line is at the position the
+     * particle would have been at this many seconds ago at its current velocity.
+     * The default is 0.1.
+     * 
+     * @param stretch The time to stretch the particles back over
+     */
+    public void setStretch(float stretch) {
+        this.stretch = stretch;
+    }
+
+    /**
+     * @return The alpha of the tail of each line as a fraction of the particle alpha
+     */
+    public float getTailAlpha() {
+        return tailAlpha;
+    }
+
+    /**
+     * Set how much the lines fade towards the tail. The default is 0, which fades
+     * the tail out completely, while 1 gives no fade at all.
+     * 
+     * @param tailAlpha The alpha of the tail as a fraction of the particle alpha
+     */
+    public void setTailAlpha(float tailAlpha) {
+        this.tailAlpha = tailAlpha;
+    }
+
+    @Override
+    public void initializeParticleData(ParticleController controller) {
+        int numParticles = controller.getMaxParticles();
+
+        setMode(Mesh.Mode.Lines);
+
+        // set positions
+        FloatBuffer pb = BufferUtils.createVector3Buffer(numParticles * 2);
+
+        //if the buffer is already set only update the data
+        VertexBuffer buf = getBuffer(VertexBuffer.Type.Position);
+        if (buf != null) {
+            buf.updateData(pb);
+        } else {
+            VertexBuffer pvb = new VertexBuffer(VertexBuffer.Type.Position);
+            pvb.setupData(VertexBuffer.Usage.Stream, 3, VertexBuffer.Format.Float, pb);
+            setBuffer(pvb);
+        }
+
+        // set colors
+        ByteBuffer cb = BufferUtils.createByteBuffer(numParticles * 2 * 4);
+
+        buf = getBuffer(VertexBuffer.Type.Color);
+        if (buf != null) {
+            buf.updateData(cb);
+        } else {
+            VertexBuffer cvb = new VertexBuffer(VertexBuffer.Type.Color);
+            cvb.setupData(VertexBuffer.Usage.Stream, 4, VertexBuffer.Format.UnsignedByte, cb);
+            cvb.setNormalized(true);
+            setBuffer(cvb);
+        }
+
+        updateCounts();
+    }
+
+    @Override
+    public void updateParticleData(Camera cam, ParticleController controller) {
+
+        ParticleData[] particles = controller.getParticles();
+        int[] order = getDrawOrder(cam, controller);
+
+        VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
+        FloatBuffer positions = (FloatBuffer) pvb.getData();
+
+        VertexBuffer cvb = getBuffer(VertexBuffer.Type.Color);
+        ByteBuffer colors = (ByteBuffer) cvb.getData();
+
+        positions.clear();
+        colors.clear();
+        IntBuffer colorInts = getColorInts(colors);
+
+        int tailAlphaScale = Math.round(Math.max(0, Math.min(1, tailAlpha)) * 256);
+
+        // Only active particles are written. They are gathered into the staging
+        // arrays a block at a time which are then copied into the buffers in one go.
+        int count = 0;
+        int staged = 0;
+        for (int i = 0; i < particles.length; i++) {
+            ParticleData p = particles[order[i]];
+
+            if (p.active) {
+                float x = p.position.x, y = p.position.y, z = p.position.z;
+                int pos = staged * 6;
+                stagingPositions[pos] = x;
+                stagingPositions[pos + 1] = y;
+                stagingPositions[pos + 2] = z;
+                stagingPositions[pos + 3] = x - p.velocity.x * stretch;
+                stagingPositions[pos + 4] = y - p.velocity.y * stretch;
+                stagingPositions[pos + 5] = z - p.velocity.z * stretch;
+
+                int abgr = p.color.asIntABGR();
+                int alpha = ((abgr >>> 24) * tailAlphaScale) >> 8;
+                stagingColors[staged * 2] = abgr;
+                stagingColors[staged * 2 + 1] = (abgr & 0x00FFFFFF) | (alpha << 24);
+
+                count++;
+                if (++staged == STAGING_PARTICLES) {
+                    positions.put(stagingPositions, 0, staged * 6);
+                    colorInts.put(stagingColors, 0, staged * 2);
+                    staged = 0;
+                }
+            }
+        }
+        positions.put(stagingPositions, 0, staged * 6);
+        colorInts.put(stagingColors, 0, staged * 2);
+
+        // We haven't put inactive particles into the buffers, so the limits are set
+        // so only the active particles get used.
+        positions.flip();
+        colors.position(0).limit(count * 2 * 4);
+
+        // force renderer to re-send data to GPU
+        pvb.updateData(positions);
+        cvb.updateData(colors);
+
+        // Update the vertex count
+        updateCounts();
+    }
+
+    @Override
+    public void updateParticleBound(ParticleController controller) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+
+        // The bound covers both ends of each line
+        ParticleData[] particles = controller.getParticles();
+        for (int i = 0; i < particles.length; i++) {
+            ParticleData p = particles[i];
+            if (p.active) {
+                float x = p.position.x, y = p.position.y, z = p.position.z;
+                float tailX = x - p.velocity.x * stretch;
+                float tailY = y - p.velocity.y * stretch;
+                float tailZ = z - p.velocity.z * stretch;
+                minX = Math.min(minX, Math.min(x, tailX));
+                minY = Math.min(minY, Math.min(y, tailY));
+                minZ = Math.min(minZ, Math.min(z, tailZ));
+                maxX = Math.max(maxX, Math.max(x, tailX));
+                maxY = Math.max(maxY, Math.max(y, tailY));
+                maxZ = Math.max(maxZ, Math.max(z, tailZ));
+            }
+        }
+
+        boundMin.set(minX, minY, minZ);
+        boundMax.set(maxX, maxY, maxZ);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.math.FastMath;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleDepthSorter;
+import com.jme3.particles.ParticleMesh;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.VertexBuffer;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class implements ParticleMesh by switching between a QuadMesh when the
+ * particles are close to the camera and a PointMesh when they are far away, where
+ * the extra flexibility of quads is not visible. The point sprites take a quarter
+ * of the vertices and need no billboarding, so distant effects are much cheaper
+ * to fill and draw.
+ * 
+ * Both meshes share the one material, with the PointSprite parameter switched to
+ * match the mesh in use. Only the mesh in use is filled each frame. To stop the
+ * mesh flickering between the two at the switch distance the particles only
+ * switch back to quads once they are a little closer than the switch distance.
+ * 
+ * The geometry can only hold one set of buffers, so the mesh is picked from the
+ * distance to a single camera, see setLodCamera(). When the particles are shown
+ * on several cameras the others draw whichever mesh that camera picked, rather
+ * than the buffers being swapped and filled again for every camera.
+ */
+public class LodMesh extends ParticleMesh {
+
+    /**
+     * The fraction of the switch distance the particles must come back within
+     * before they switch from points back to quads.
+     */
+    private static final float HYSTERESIS = 0.9f;
+
+    private final QuadMesh quadMesh;
+    private final PointMesh pointMesh;
+    private float switchDistance;
+
+    private ParticleMesh current;
+    private Camera lodCamera;
+
+    /**
+     * Construct a new LodMesh that will load the sprite texture from the given
+     * path using the supplied AssetManager.
+     * 
+     * @param billboardStrategy The QuadMeshBillboardStrategy to use for the quads
+     * @param assetManager The AssetManager to use
+     * @param texturePath The path from which to load the texture used for particles
+     * @param spriteCols The number of columns of sprites in the texture
+     * @param spriteRows The number of rows of sprites in the texture
+     * @param switchDistance The distance from the camera beyond which points are used
+     */
+    public LodMesh(QuadMeshBillboardStrategy billboardStrategy, AssetManager assetManager, String texturePath, int spriteCols, int spriteRows, float switchDistance) {
+        this(billboardStrategy, new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md"), spriteCols, spriteRows, switchDistance);
+        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
+        material.setTexture("Texture", assetManager.loadTexture(texturePath));
+    }
+
+    /**
+     * Construct a new LodMesh which will use the supplied material. The material
+     * must support the PointSprite and Quadratic parameters of Particle.j3md.
+     * 
+     * @param billboardStrategy The QuadMeshBillboardStrategy to use for the quads
+     * @param material The material to use
+     * @param spriteCols The number of columns of sprites in the texture
+     * @param spriteRows The number of rows of sprites in the texture
+     * @param switchDistance The distance from the camera beyond which points are used
+     */
+    public LodMesh(QuadMeshBillboardStrategy billboardStrategy, Material material, int spriteCols, int spriteRows, float switchDistance) {
+        super(material, spriteCols, spriteRows);
+        this.quadMesh = new QuadMesh(billboardStrategy, material, spriteCols, spriteRows);
+        this.pointMesh = new PointMesh(material, spriteCols, spriteRows);
+        this.switchDistance = switchDistance;
+    }
+
+    /**
+     * @return The distance from the camera beyond which points are used
+     */
+    public float getSwitchDistance() {
+        return switchDistance;
+    }
+
+    /**
+     * @param switchDistance The distance from the camera beyond which points are used
+     */
+    public void setSwitchDistance(float switchDistance) {
+        this.switchDistance = switchDistance;
+    }
+
+    /**
+     * @return The camera the mesh is picked for, or null if none has been set
+     * and the particles have not been rendered yet
+     */
+    public Camera getLodCamera() {
+        return lodCamera;
+    }
+
+    /**
+     * Sets the camera whose distance from the particles picks the mesh. Other
+     * cameras draw the same mesh. If this is not set the first camera the
+     * particles are rendered on is used, which is not the main camera when pre
+     * views such as reflections also show the particles.
+     * 
+     * @param lodCamera The camera to pick the mesh for, or null to use the next
+     * camera the particles are rendered on
+     */
+    public void setLodCamera(Camera lodCamera) {
+        this.lodCamera = lodCamera;
+    }
+
+    /**
+     * @return true if the particles are currently displayed as point sprites
+     */
+    public boolean isUsingPoints() {
+        return current == pointMesh;
+    }
+
+    @Override
+    public void setTextureRegion(float startX, float startY, float endX, float endY) {
+        super.setTextureRegion(startX, startY, endX, endY);
+        quadMesh.setTextureRegion(startX, startY, endX, endY);
+        pointMesh.setTextureRegion(startX, startY, endX, endY);
+    }
+
+    @Override
+    public void setTexCoordFormat(VertexBuffer.Format format) {
+        super.setTexCoordFormat(format);
+        quadMesh.setTexCoordFormat(format);
+        pointMesh.setTexCoordFormat(format);
+    }
+
+    @Override
+    public void setInterleavedLayout(boolean interleavedLayout) {
+        super.setInterleavedLayout(interleavedLayout);
+        quadMesh.setInterleavedLayout(interleavedLayout);
+        pointMesh.setInterleavedLayout(interleavedLayout);
+    }
+
+    @Override
+    public void setDepthSorter(ParticleDepthSorter depthSorter) {
+        super.setDepthSorter(depthSorter);
+        quadMesh.setDepthSorter(depthSorter);
+        pointMesh.setDepthSorter(depthSorter);
+    }
+
+    @Override
+    public void setParallelFill(ExecutorService executor, int tasks) {
+        super.setParallelFill(executor, tasks);
+        quadMesh.setParallelFill(executor, tasks);
+        pointMesh.setParallelFill(executor, tasks);
+    }
+
+    @Override
+    public void initializeParticleData(ParticleController controller) {
+        quadMesh.initializeParticleData(controller);
+        pointMesh.initializeParticleData(controller);
+        use(current == pointMesh ? pointMesh : quadMesh);
+    }
+
+    /**
+     * Displays the buffers of the given mesh through this one.
+     */
+    private void use(ParticleMesh mesh) {
+        current = mesh;
+        for (VertexBuffer.Type type : VertexBuffer.Type.values()) {
+            clearBuffer(type);
+        }
+        for (VertexBuffer vb : mesh.getBufferList()) {
+            setBuffer(vb);
+        }
+        setMode(mesh.getMode());
+        material.setBoolean("PointSprite", mesh == pointMesh);
+    }
+
+    @Override
+    public void particlesUpdated(ParticleController controller) {
+        quadMesh.particlesUpdated(controller);
+        pointMesh.particlesUpdated(controller);
+    }
+
+    @Override
+    public void updateCamera(Camera cam, ParticleController controller) {
+        if (lodCamera == null) {
+            lodCamera = cam;
+        }
+        current.updateCamera(cam, controller);
+        if (cam != lodCamera) {
+            return;
+        }
+
+        BoundingVolume bound = controller.getGeometry().getWorldBound();
+        float distance = bound != null ? bound.distanceToEdge(cam.getLocation()) : 0;
+
+        ParticleMesh wanted = current;
+        if (current == quadMesh && distance > switchDistance) {
+            wanted = pointMesh;
+        } else if (current == pointMesh && distance < switchDistance * HYSTERESIS) {
+            wanted = quadMesh;
+        }
+
+        if (wanted != current) {
+            wanted.updateCamera(cam, controller);
+            use(wanted);
+            // The mesh switched to has not been filled recently, so make sure the
+            // controller fills it before it is displayed
+            controller.setMeshDirty();
+        }
+    }
+
+    @Override
+    public boolean isCameraDependent() {
+        // Every camera draws the same mesh so only it decides
+        return current.isCameraDependent();
+    }
+
+    @Override
+    public void updateParticleData(Camera cam, ParticleController controller) {
+        current.updateParticleData(cam, controller);
+    }
+
+    @Override
+    protected float getParticleRadius() {
+        // Large enough for the corners of the quads
+        return FastMath.sqrt(2);
+    }
+
+    @Override
+    public void updateCounts() {
+        // The counts come from the mesh in use
+    }
+
+    @Override
+    public int getVertexCount() {
+        return current != null ? current.getVertexCount() : 0;
+    }
+
+    @Override
+    public int getTriangleCount() {
+        return current != null ? current.getTriangleCount() : 0;
+    }
+}
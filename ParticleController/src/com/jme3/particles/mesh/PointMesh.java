@@ -33,16 +33,19 @@ package com.jme3.particles.mesh;
 
 import com.jme3.asset.AssetManager;
 import com.jme3.material.Material;
-import com.jme3.material.RenderState;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleMaterialCache;
 import com.jme3.particles.ParticleMesh;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
 import com.jme3.util.BufferUtils;
 import java.nio.ByteBuffer;
+import java.nio.Buffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
  * This class implements ParticleMesh and offers a point-sprite based particle system.
@@ -54,24 +57,34 @@ import java.nio.FloatBuffer;
  */
 public class PointMesh extends ParticleMesh {
 
+    /**
+     * The number of particles written into the staging arrays before they are
+     * copied into the buffers.
+     */
+    private static final int STAGING_PARTICLES = 256;
+
+    private final float[] stagingPositions = new float[STAGING_PARTICLES * 3];
+    private final int[] stagingColors = new int[STAGING_PARTICLES];
+    private final float[] stagingSizes = new float[STAGING_PARTICLES];
+    private final float[] stagingTexCoords = new float[STAGING_PARTICLES * 4];
+    private final short[] stagingShortTexCoords = new short[STAGING_PARTICLES * 4];
 
     /**
      * Construct a new PointMesh that will load the sprite texture from the given
-     * path using the supplied AssetManager.
+     * path using the supplied AssetManager. The material is shared with the other
+     * meshes using the same texture, see ParticleMaterialCache.
      * 
      * @param assetManager The AssetManager to use.
      * @param texturePath The path of the sprite texture.
      */
     public PointMesh(AssetManager assetManager, String texturePath) {
-        super(new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md"), 1, 1);
-        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-        material.setTexture("Texture", assetManager.loadTexture(texturePath));
-        material.setBoolean("PointSprite", true);
+        super(ParticleMaterialCache.getMaterial(assetManager, texturePath, true), 1, 1);
     }
 
     /**
      * Construct a new PointMesh that will load the sprite texture from the given
-     * path using the supplied AssetManager.
+     * path using the supplied AssetManager. The material is shared with the other
+     * meshes using the same texture, see ParticleMaterialCache.
      * 
      * @param assetManager The AssetManager to use.
      * @param texturePath The path of the sprite texture.
@@ -79,10 +92,7 @@ public class PointMesh extends ParticleMesh {
      * @param spriteRows The number of rows of sprites in the texture
      */
     public PointMesh(AssetManager assetManager, String texturePath, int spriteCols, int spriteRows) {
-        super(new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md"), spriteCols, spriteRows);
-        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-        material.setTexture("Texture", assetManager.loadTexture(texturePath));
-        material.setBoolean("PointSprite", true);
+        super(ParticleMaterialCache.getMaterial(assetManager, texturePath, true), spriteCols, spriteRows);
     }
 
     /**
@@ -106,17 +116,26 @@ public class PointMesh extends ParticleMesh {
     }
     
     
+    @Override
+    public void updateCamera(Camera cam, ParticleController controller) {
+        // The point size scale depends on the camera so is set for each camera,
+        // while the vertex data is the same for all of them
+        float C = cam.getProjectionMatrix().m00;
+        C *= cam.getWidth() * 0.5f;
+
+        material.setFloat("Quadratic", C);
+    }
+
     @Override
     public void updateParticleData(Camera cam, ParticleController controller) {
 
-        if (cam != null) {
-            float C = cam.getProjectionMatrix().m00;
-            C *= cam.getWidth() * 0.5f;
+        ParticleData[] particles = controller.getParticles();
+        int[] order = getDrawOrder(cam, controller);
 
-            material.setFloat("Quadratic", C);
+        if (interleavedLayout) {
+            updateInterleavedData(particles, order);
+            return;
         }
-        
-        ParticleData[] particles = controller.getParticles();
 
         VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
         FloatBuffer positions = (FloatBuffer) pvb.getData();
@@ -128,46 +147,54 @@ public class PointMesh extends ParticleMesh {
         FloatBuffer sizes = (FloatBuffer) svb.getData();
 
         VertexBuffer tvb = getBuffer(VertexBuffer.Type.TexCoord);
-        FloatBuffer texcoords = (FloatBuffer) tvb.getData();
+        Buffer texcoords = tvb.getData();
+        boolean floatTexCoords = texCoordFormat == VertexBuffer.Format.Float;
+        FloatBuffer floatTex = floatTexCoords ? (FloatBuffer) texcoords : null;
+        ShortBuffer shortTex = floatTexCoords ? null : (ShortBuffer) texcoords;
 
         // update data in vertex buffers
-        positions.rewind();
-        positions.limit(positions.capacity());
-        colors.rewind();
-        colors.limit(colors.capacity());
-        sizes.rewind();
-        sizes.limit(sizes.capacity());
-        texcoords.rewind();
-        texcoords.limit(texcoords.capacity());
-        
+        positions.clear();
+        colors.clear();
+        IntBuffer colorInts = getColorInts(colors);
+        sizes.clear();
+        texcoords.clear();
+
+        // Only active particles are written. They are gathered into the staging
+        // arrays a block at a time which are then copied into the buffers in one go.
+        int count = 0;
+        int staged = 0;
         for (int i = 0; i < particles.length; i++){
-            ParticleData p = particles[i];
+            ParticleData p = particles[order[i]];
             
             if (p.active) {
+                int pos = staged * 3;
+                stagingPositions[pos] = p.position.x;
+                stagingPositions[pos + 1] = p.position.y;
+                stagingPositions[pos + 2] = p.position.z;
 
-                positions.put(p.position.x)
-                         .put(p.position.y)
-                         .put(p.position.z);
-
-                sizes.put(p.size);
-                colors.putInt(p.color.asIntABGR());
-
-                float imgX = p.spriteCol;
-                float imgY = p.spriteRow;
+                stagingSizes[staged] = p.size;
+                stagingColors[staged] = p.color.asIntABGR();
 
-                float startX = imgX / spriteCols;
-                float startY = imgY / spriteRows;
-                float endX   = startX + (1f / spriteCols);
-                float endY   = startY + (1f / spriteRows);
+                // The sprite table is already laid out as startX, startY, endX, endY
+                if (floatTexCoords) {
+                    System.arraycopy(spriteUVs, getSpriteUVOffset(p.spriteIndex), stagingTexCoords, staged * 4, 4);
+                } else {
+                    System.arraycopy(spriteUVShorts, getSpriteUVOffset(p.spriteIndex), stagingShortTexCoords, staged * 4, 4);
+                }
 
-                texcoords.put(startX).put(startY).put(endX).put(endY);
+                count++;
+                if (++staged == STAGING_PARTICLES) {
+                    putStaged(staged, positions, colorInts, sizes, floatTex, shortTex);
+                    staged = 0;
+                }
             }
         }
+        putStaged(staged, positions, colorInts, sizes, floatTex, shortTex);
         
-        // We haven't put inactive particles into the buffers, flip marks the limits
-        // on the buffers so only the active particles get used.
+        // We haven't put inactive particles into the buffers, so the limits are set
+        // so only the active particles get used.
         positions.flip();
-        colors.flip();
+        colors.position(0).limit(count * 4);
         sizes.flip();
         texcoords.flip();
 
@@ -187,6 +214,17 @@ public class PointMesh extends ParticleMesh {
         
         setMode(Mesh.Mode.Points);
 
+        if (interleavedLayout) {
+            int stride = getInterleavedStride();
+            setupInterleavedAttribute(VertexBuffer.Type.Position, 3, VertexBuffer.Format.Float, false, 0, stride);
+            setupInterleavedAttribute(VertexBuffer.Type.Color, 4, VertexBuffer.Format.UnsignedByte, true, 12, stride);
+            setupInterleavedAttribute(VertexBuffer.Type.Size, 1, VertexBuffer.Format.Float, false, 16, stride);
+            setupInterleavedAttribute(VertexBuffer.Type.TexCoord, 4, texCoordFormat, texCoordFormat != VertexBuffer.Format.Float, 20, stride);
+            setupInterleavedData(numParticles * stride);
+            updateInterleavedCounts(0, 0);
+            return;
+        }
+
         // set positions
         FloatBuffer pb = BufferUtils.createVector3Buffer(numParticles);
         
@@ -226,17 +264,91 @@ public class PointMesh extends ParticleMesh {
         }
 
         // set UV-scale
-        FloatBuffer tb = BufferUtils.createFloatBuffer(numParticles*4);
+        Buffer tb;
+        if (texCoordFormat == VertexBuffer.Format.Float) {
+            tb = BufferUtils.createFloatBuffer(numParticles*4);
+        } else {
+            tb = BufferUtils.createShortBuffer(numParticles*4);
+        }
         
         buf = getBuffer(VertexBuffer.Type.TexCoord);
         if (buf != null) {
             buf.updateData(tb);
         } else {
             VertexBuffer tvb = new VertexBuffer(VertexBuffer.Type.TexCoord);
-            tvb.setupData(VertexBuffer.Usage.Stream, 4, VertexBuffer.Format.Float, tb);
+            tvb.setupData(VertexBuffer.Usage.Stream, 4, texCoordFormat, tb);
+            tvb.setNormalized(texCoordFormat != VertexBuffer.Format.Float);
             setBuffer(tvb);
         }
         
         updateCounts();
     }
+
+    @Override
+    protected float getParticleRadius() {
+        // The point sprite covers the projected size of the particle
+        return 0.5f;
+    }
+
+    private int getInterleavedStride() {
+        // position, color, size, texcoord
+        return 12 + 4 + 4 + (texCoordFormat == VertexBuffer.Format.Float ? 16 : 8);
+    }
+
+    private void putStaged(int staged, FloatBuffer positions, IntBuffer colors, FloatBuffer sizes,
+            FloatBuffer floatTex, ShortBuffer shortTex) {
+        positions.put(stagingPositions, 0, staged * 3);
+        colors.put(stagingColors, 0, staged);
+        sizes.put(stagingSizes, 0, staged);
+        if (floatTex != null) {
+            floatTex.put(stagingTexCoords, 0, staged * 4);
+        } else {
+            shortTex.put(stagingShortTexCoords, 0, staged * 4);
+        }
+    }
+
+    private void updateInterleavedData(ParticleData[] particles, int[] order) {
+        VertexBuffer ivb = getBuffer(VertexBuffer.Type.InterleavedData);
+        ByteBuffer data = (ByteBuffer) ivb.getData();
+        data.clear();
+
+        boolean floatTexCoords = texCoordFormat == VertexBuffer.Format.Float;
+        int count = 0;
+
+        for (int i = 0; i < particles.length; i++){
+            ParticleData p = particles[order[i]];
+
+            if (p.active) {
+                data.putFloat(p.position.x)
+                    .putFloat(p.position.y)
+                    .putFloat(p.position.z);
+                data.putInt(p.color.asIntABGR());
+                data.putFloat(p.size);
+
+                int uv = getSpriteUVOffset(p.spriteIndex);
+                if (floatTexCoords) {
+                    data.putFloat(spriteUVs[uv])
+                        .putFloat(spriteUVs[uv + 1])
+                        .putFloat(spriteUVs[uv + 2])
+                        .putFloat(spriteUVs[uv + 3]);
+                } else {
+                    data.putShort(spriteUVShorts[uv])
+                        .putShort(spriteUVShorts[uv + 1])
+                        .putShort(spriteUVShorts[uv + 2])
+                        .putShort(spriteUVShorts[uv + 3]);
+                }
+
+                count++;
+            }
+        }
+
+        // Only the active particles have been written, flip marks the limit so
+        // only they get used.
+        data.flip();
+
+        // force renderer to re-send data to GPU
+        ivb.updateData(data);
+
+        updateInterleavedCounts(count, count);
+    }
 }
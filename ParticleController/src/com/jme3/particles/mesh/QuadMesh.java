@@ -33,17 +33,25 @@ package com.jme3.particles.mesh;
 
 import com.jme3.asset.AssetManager;
 import com.jme3.material.Material;
-import com.jme3.material.RenderState;
+import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleMaterialCache;
 import com.jme3.particles.ParticleMesh;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.util.BufferUtils;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * This class implements QuadMesh and offers a point-sprite based particle system.
@@ -60,27 +68,42 @@ public class QuadMesh extends ParticleMesh {
     private static final Vector3f up = new Vector3f();
     private static final Vector3f left = new Vector3f();
     private static final Vector3f dir = new Vector3f();
+
+    /**
+     * The number of particles written into the staging arrays before they are
+     * copied into the buffers.
+     */
+    private static final int STAGING_PARTICLES = 256;
+
+    // Working storage for each fill task
+    private FillStaging[] staging;
+
+    /**
+     * The quad indices only depend on the number of particles so one index buffer
+     * is shared between all QuadMeshes with the same capacity.
+     */
+    private static final Map<Integer, WeakReference<VertexBuffer>> sharedIndexBuffers = new HashMap<Integer, WeakReference<VertexBuffer>>();
     
     /**
      * Construct a new QuadMesh using the supplied QuadMeshBillboardStrategy, and
      * that will load the sprite texture from the given path using the supplied 
-     * AssetManager.
+     * AssetManager. The material is shared with the other meshes using the same
+     * texture, see ParticleMaterialCache.
      * 
      * @param billboardStrategy The QuadMeshBillboardStrategy to use
      * @param assetManager The AssetManager to use
      * @param texturePath The path from which to load the texture used for particles
      */
     public QuadMesh(QuadMeshBillboardStrategy billboardStrategy, AssetManager assetManager, String texturePath) {
-        super(new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md"), 1, 1);
-        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-        material.setTexture("Texture", assetManager.loadTexture(texturePath));
+        super(ParticleMaterialCache.getMaterial(assetManager, texturePath, false), 1, 1);
         this.billboardStrategy = billboardStrategy;
     }
 
     /**
      * Construct a new QuadMesh using the supplied QuadMeshBillboardStrategy, and
      * that will load the sprite texture from the given path using the supplied 
-     * AssetManager.
+     * AssetManager. The material is shared with the other meshes using the same
+     * texture, see ParticleMaterialCache.
      * 
      * @param billboardStrategy The QuadMeshBillboardStrategy to use
      * @param assetManager The AssetManager to use
@@ -89,9 +112,7 @@ public class QuadMesh extends ParticleMesh {
      * @param spriteRows The number of rows of sprites in the texture
      */
     public QuadMesh(QuadMeshBillboardStrategy billboardStrategy, AssetManager assetManager, String texturePath, int spriteCols, int spriteRows) {
-        super(new Material(assetManager, "Common/MatDefs/Misc/Particle.j3md"), spriteCols, spriteRows);
-        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
-        material.setTexture("Texture", assetManager.loadTexture(texturePath));
+        super(ParticleMaterialCache.getMaterial(assetManager, texturePath, false), spriteCols, spriteRows);
         this.billboardStrategy = billboardStrategy;
     }
     
@@ -114,6 +135,84 @@ public class QuadMesh extends ParticleMesh {
 
         int numParticles = controller.getMaxParticles();
 
+        if (interleavedLayout) {
+            setupInterleavedAttributes();
+        } else {
+            initializeSeparateBuffers(numParticles);
+        }
+
+        // set indices
+        VertexBuffer ivb = getSharedIndexBuffer(numParticles);
+        if (getBuffer(VertexBuffer.Type.Index) != ivb) {
+            clearBuffer(VertexBuffer.Type.Index);
+            setBuffer(ivb);
+        }
+
+        if (interleavedLayout) {
+            // The interleaved buffer must be added last, after all of the attributes
+            setupInterleavedData(numParticles * 4 * getInterleavedStride());
+            updateInterleavedCounts(numParticles * 4, numParticles * 2);
+        }
+
+        updateCounts();
+    }
+
+    @Override
+    public boolean isCameraDependent() {
+        return super.isCameraDependent() || billboardStrategy.isCameraDependent();
+    }
+
+    @Override
+    protected float getParticleRadius() {
+        // The corners are at the ends of the up and left vectors added together
+        return FastMath.sqrt(2);
+    }
+
+    /**
+     * Gets the index buffer for the given number of particles, building it if no
+     * other QuadMesh is currently using one. Above 16383 particles there are too
+     * many vertices to index with shorts so the indices are stored as ints.
+     */
+    private static VertexBuffer getSharedIndexBuffer(int numParticles) {
+        synchronized (sharedIndexBuffers) {
+            WeakReference<VertexBuffer> ref = sharedIndexBuffers.get(numParticles);
+            VertexBuffer ivb = ref == null ? null : ref.get();
+            if (ivb == null) {
+                IndexBuffer ib = IndexBuffer.createIndexBuffer(numParticles * 4, numParticles * 6);
+                for (int i = 0; i < numParticles; i++) {
+                    int startIdx = (i * 4);
+                    int idx = (i * 6);
+
+                    // triangle 1
+                    ib.put(idx, startIdx + 1);
+                    ib.put(idx + 1, startIdx + 0);
+                    ib.put(idx + 2, startIdx + 2);
+
+                    // triangle 2
+                    ib.put(idx + 3, startIdx + 1);
+                    ib.put(idx + 4, startIdx + 2);
+                    ib.put(idx + 5, startIdx + 3);
+                }
+
+                Buffer data = ib.getBuffer();
+                ivb = new VertexBuffer(VertexBuffer.Type.Index);
+                ivb.setupData(VertexBuffer.Usage.Static, 3,
+                        data instanceof IntBuffer ? VertexBuffer.Format.UnsignedInt : VertexBuffer.Format.UnsignedShort, data);
+                // Drop the entries for capacities no mesh uses any more before adding
+                // this one, so the map does not grow with every capacity ever seen
+                Iterator<WeakReference<VertexBuffer>> it = sharedIndexBuffers.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().get() == null) {
+                        it.remove();
+                    }
+                }
+                sharedIndexBuffers.put(numParticles, new WeakReference<VertexBuffer>(ivb));
+            }
+            return ivb;
+        }
+    }
+
+    private void initializeSeparateBuffers(int numParticles) {
         // set positions
         FloatBuffer pb = BufferUtils.createVector3Buffer(numParticles * 4);
         // if the buffer is already set only update the data
@@ -140,12 +239,25 @@ public class QuadMesh extends ParticleMesh {
         }
 
         // set texcoords
-        FloatBuffer tb = BufferUtils.createVector2Buffer(numParticles * 4);
-        for (int i = 0; i < numParticles; i++) {
-            tb.put(0f).put(1f);
-            tb.put(1f).put(1f);
-            tb.put(0f).put(0f);
-            tb.put(1f).put(0f);
+        Buffer tb;
+        if (texCoordFormat == VertexBuffer.Format.Float) {
+            FloatBuffer ftb = BufferUtils.createVector2Buffer(numParticles * 4);
+            for (int i = 0; i < numParticles; i++) {
+                ftb.put(0f).put(1f);
+                ftb.put(1f).put(1f);
+                ftb.put(0f).put(0f);
+                ftb.put(1f).put(0f);
+            }
+            tb = ftb;
+        } else {
+            ShortBuffer stb = BufferUtils.createShortBuffer(numParticles * 4 * 2);
+            for (int i = 0; i < numParticles; i++) {
+                stb.put((short) 0).put(UV_ONE);
+                stb.put(UV_ONE).put(UV_ONE);
+                stb.put((short) 0).put((short) 0);
+                stb.put(UV_ONE).put((short) 0);
+            }
+            tb = stb;
         }
         tb.flip();
 
@@ -154,165 +266,337 @@ public class QuadMesh extends ParticleMesh {
             buf.updateData(tb);
         } else {
             buf = new VertexBuffer(VertexBuffer.Type.TexCoord);
-            buf.setupData(uniqueTexCoords? VertexBuffer.Usage.Dynamic: VertexBuffer.Usage.Static, 2, VertexBuffer.Format.Float, tb);
+            buf.setupData(uniqueTexCoords? VertexBuffer.Usage.Dynamic: VertexBuffer.Usage.Static, 2, texCoordFormat, tb);
+            buf.setNormalized(texCoordFormat != VertexBuffer.Format.Float);
             setBuffer(buf);
         }
-        
-        if (!uniqueTexCoords) {
-            FloatBuffer texcoords = (FloatBuffer) buf.getData();
-            
-            for (int i = 0; i < numParticles; i++) {
-                texcoords.put(0).put(1);
-                texcoords.put(1).put(1);
-                texcoords.put(0).put(0);
-                texcoords.put(1).put(0);
-            }
-        }
-
-        // set indices
-        ShortBuffer ib = BufferUtils.createShortBuffer(numParticles * 6);
-        for (int i = 0; i < numParticles; i++) {
-            int startIdx = (i * 4);
-
-            // triangle 1
-            ib.put((short) (startIdx + 1))
-                    .put((short) (startIdx + 0))
-                    .put((short) (startIdx + 2));
-
-            // triangle 2
-            ib.put((short) (startIdx + 1))
-                    .put((short) (startIdx + 2))
-                    .put((short) (startIdx + 3));
-        }
-        ib.flip();
+    }
 
-        buf = getBuffer(VertexBuffer.Type.Index);
-        if (buf != null) {
-            buf.updateData(ib);
-        } else {
-            VertexBuffer ivb = new VertexBuffer(VertexBuffer.Type.Index);
-            ivb.setupData(VertexBuffer.Usage.Static, 3, VertexBuffer.Format.UnsignedShort, ib);
-            setBuffer(ivb);
-        }
+    private int getInterleavedStride() {
+        // position, color, texcoord
+        return 12 + 4 + (texCoordFormat == VertexBuffer.Format.Float ? 8 : 4);
+    }
 
-        updateCounts();
+    private void setupInterleavedAttributes() {
+        int stride = getInterleavedStride();
+        setupInterleavedAttribute(VertexBuffer.Type.Position, 3, VertexBuffer.Format.Float, false, 0, stride);
+        setupInterleavedAttribute(VertexBuffer.Type.Color, 4, VertexBuffer.Format.UnsignedByte, true, 12, stride);
+        setupInterleavedAttribute(VertexBuffer.Type.TexCoord, 2, texCoordFormat, texCoordFormat != VertexBuffer.Format.Float, 16, stride);
     }
 
     @Override
     public void updateParticleData(Camera cam, ParticleController controller) {
 
+        ParticleData[] particles = controller.getParticles();
+        int[] order = getDrawOrder(cam, controller);
+
+        // Fall back to fixed orientation until camera information is available
+        QuadMeshBillboardStrategy strategy = cam != null ? billboardStrategy : QuadMeshBillboardStrategy.UNIT_Y;
+        strategy.prepareFrame(cam, controller, up, left, dir);
+
+        if (interleavedLayout) {
+            // The interleaved data mixes types so is written a value at a time on
+            // this thread
+            updateInterleavedData(cam, controller, strategy, particles, order);
+            return;
+        }
+
         VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
-        FloatBuffer positions = (FloatBuffer) pvb.getData();
+        final FloatBuffer positions = (FloatBuffer) pvb.getData();
 
         VertexBuffer cvb = getBuffer(VertexBuffer.Type.Color);
-        ByteBuffer colors = (ByteBuffer) cvb.getData();
+        final ByteBuffer colors = (ByteBuffer) cvb.getData();
 
-        VertexBuffer tvb = getBuffer(VertexBuffer.Type.TexCoord);
-        FloatBuffer texcoords = (FloatBuffer) tvb.getData();
+        VertexBuffer tvb = uniqueTexCoords ? getBuffer(VertexBuffer.Type.TexCoord) : null;
+        final Buffer texcoords = tvb != null ? tvb.getData() : null;
 
-        // update data in vertex buffers
         positions.clear();
         colors.clear();
-        if (uniqueTexCoords) {
+        if (texcoords != null) {
             texcoords.clear();
         }
-        
-        ParticleData[] particles = controller.getParticles();
+        final IntBuffer colorInts = getColorInts(colors);
 
-        for (int i = 0; i < particles.length; i++) {
-            ParticleData p = particles[i];
+        if (staging == null || staging.length < fillTasks) {
+            staging = new FillStaging[fillTasks];
+            for (int i = 0; i < staging.length; i++) {
+                staging[i] = new FillStaging();
+            }
+        }
 
-            if (p.active) {
+        // Every particle has its own part of each buffer so the ranges can be
+        // written at the same time
+        final Camera frameCam = cam;
+        final ParticleController frameController = controller;
+        final QuadMeshBillboardStrategy frameStrategy = strategy;
+        final ParticleData[] frameParticles = particles;
+        final int[] frameOrder = order;
+        fillRanges(particles.length, new FillRange() {
+            public void fill(int task, int start, int end) {
+                fillSeparateBuffers(frameCam, frameController, frameStrategy, frameParticles, frameOrder,
+                        task, start, end, positions, colorInts, texcoords);
+            }
+        });
+
+        // The calling thread fills its range directly so the positions need resetting
+        positions.clear();
+        colors.clear();
+        if (texcoords != null) {
+            texcoords.clear();
+        }
+
+        // force renderer to re-send data to GPU
+        pvb.updateData(positions);
+        cvb.updateData(colors);
+        if (tvb != null) {
+            tvb.updateData(texcoords);
+        }
+        
+        updateCounts();
+    }
+
+    private void fillSeparateBuffers(Camera cam, ParticleController controller, QuadMeshBillboardStrategy strategy,
+            ParticleData[] particles, int[] order, int task, int start, int end,
+            FloatBuffer positions, IntBuffer colors, Buffer texcoords) {
+
+        FillStaging s = staging[task];
+        boolean perParticle = strategy.isPerParticle();
+        boolean floatTexCoords = texCoordFormat == VertexBuffer.Format.Float;
+
+        FloatBuffer positionsOut = getTaskBuffer(positions, task);
+        positionsOut.position(start * 12);
+        IntBuffer colorsOut = getTaskBuffer(colors, task);
+        colorsOut.position(start * 4);
+        FloatBuffer floatTexOut = null;
+        ShortBuffer shortTexOut = null;
+        if (texcoords != null) {
+            if (floatTexCoords) {
+                floatTexOut = getTaskBuffer((FloatBuffer) texcoords, task);
+                floatTexOut.position(start * 8);
+            } else {
+                shortTexOut = getTaskBuffer((ShortBuffer) texcoords, task);
+                shortTexOut.position(start * 8);
+            }
+        }
 
-                if (cam != null) {
-                    billboardStrategy.billboard(cam, controller, p, up, left, dir);
+        // When not per particle the axes are the same for every particle so only the scale changes
+        float upX = up.x, upY = up.y, upZ = up.z;
+        float leftX = left.x, leftY = left.y, leftZ = left.z;
+
+        // Fill the staging arrays a block at a time and then copy each block into the
+        // buffers in one go, which is much faster than putting one value at a time
+        for (int blockStart = start; blockStart < end; blockStart += STAGING_PARTICLES) {
+            int blockEnd = Math.min(blockStart + STAGING_PARTICLES, end);
+
+            int pos = 0;
+            int col = 0;
+            for (int i = blockStart; i < blockEnd; i++) {
+                ParticleData p = particles[order[i]];
+
+                if (p.active) {
+                    if (perParticle) {
+                        strategy.billboard(cam, controller, p, s.up, s.left, s.dir);
+                        upX = s.up.x; upY = s.up.y; upZ = s.up.z;
+                        leftX = s.left.x; leftY = s.left.y; leftZ = s.left.z;
+                    }
+                    float size = p.size;
+                    putParticle(s.positions, pos, s.colors, col, p,
+                            upX * size, upY * size, upZ * size,
+                            leftX * size, leftY * size, leftZ * size);
                 } else {
-                    // Fall back to fixed orientation until camera information is available
-                    QuadMeshBillboardStrategy.UNIT_Y.billboard(cam, controller, p, up, left, dir);
+                    putInactiveParticle(s.positions, pos, s.colors, col);
                 }
-                up.multLocal(p.size);
-                left.multLocal(p.size);
-
-                positions.put(p.position.x + left.x + up.x)
-                        .put(p.position.y + left.y + up.y)
-                        .put(p.position.z + left.z + up.z);
-
-                positions.put(p.position.x - left.x + up.x)
-                        .put(p.position.y - left.y + up.y)
-                        .put(p.position.z - left.z + up.z);
-
-                positions.put(p.position.x + left.x - up.x)
-                        .put(p.position.y + left.y - up.y)
-                        .put(p.position.z + left.z - up.z);
-
-                positions.put(p.position.x - left.x - up.x)
-                        .put(p.position.y - left.y - up.y)
-                        .put(p.position.z - left.z - up.z);
-
-                if (uniqueTexCoords) {
-                    float imgX = p.spriteCol;
-                    float imgY = p.spriteRow;
-
-                    float startX = imgX / spriteCols;
-                    float startY = imgY / spriteRows;
-                    float endX = startX + 1f / spriteCols;
-                    float endY = startY + 1f / spriteRows;
-
-                    texcoords.put(startX).put(endY);
-                    texcoords.put(endX).put(endY);
-                    texcoords.put(startX).put(startY);
-                    texcoords.put(endX).put(startY);
+                pos += 12;
+                col += 4;
+            }
+            positionsOut.put(s.positions, 0, pos);
+            colorsOut.put(s.colors, 0, col);
+
+            if (floatTexOut != null) {
+                putTexCoords(s.texcoords, particles, order, blockStart, blockEnd);
+                floatTexOut.put(s.texcoords, 0, (blockEnd - blockStart) * 8);
+            } else if (shortTexOut != null) {
+                putTexCoords(s.shortTexCoords, particles, order, blockStart, blockEnd);
+                shortTexOut.put(s.shortTexCoords, 0, (blockEnd - blockStart) * 8);
+            }
+        }
+    }
+
+    private void putParticle(float[] positions, int pos, int[] colors, int col, ParticleData p,
+            float upX, float upY, float upZ, float leftX, float leftY, float leftZ) {
+
+        float x = p.position.x;
+        float y = p.position.y;
+        float z = p.position.z;
+
+        positions[pos] = x + leftX + upX;
+        positions[pos + 1] = y + leftY + upY;
+        positions[pos + 2] = z + leftZ + upZ;
+
+        positions[pos + 3] = x - leftX + upX;
+        positions[pos + 4] = y - leftY + upY;
+        positions[pos + 5] = z - leftZ + upZ;
+
+        positions[pos + 6] = x + leftX - upX;
+        positions[pos + 7] = y + leftY - upY;
+        positions[pos + 8] = z + leftZ - upZ;
+
+        positions[pos + 9] = x - leftX - upX;
+        positions[pos + 10] = y - leftY - upY;
+        positions[pos + 11] = z - leftZ - upZ;
+
+        int abgr = p.color.asIntABGR();
+        colors[col] = abgr;
+        colors[col + 1] = abgr;
+        colors[col + 2] = abgr;
+        colors[col + 3] = abgr;
+    }
+
+    private void putInactiveParticle(float[] positions, int pos, int[] colors, int col) {
+        for (int i = 0; i < 12; i++) {
+            positions[pos + i] = 0;
+        }
+
+        colors[col] = 0;
+        colors[col + 1] = 0;
+        colors[col + 2] = 0;
+        colors[col + 3] = 0;
+    }
+
+    private void updateInterleavedData(Camera cam, ParticleController controller, QuadMeshBillboardStrategy strategy, ParticleData[] particles, int[] order) {
+
+        VertexBuffer ivb = getBuffer(VertexBuffer.Type.InterleavedData);
+        ByteBuffer data = (ByteBuffer) ivb.getData();
+        data.clear();
+
+        boolean perParticle = strategy.isPerParticle();
+        float upX = up.x, upY = up.y, upZ = up.z;
+        float leftX = left.x, leftY = left.y, leftZ = left.z;
+
+        for (int i = 0; i < particles.length; i++) {
+            ParticleData p = particles[order[i]];
+
+            if (p.active) {
+                if (perParticle) {
+                    strategy.billboard(cam, controller, p, up, left, dir);
+                    upX = up.x; upY = up.y; upZ = up.z;
+                    leftX = left.x; leftY = left.y; leftZ = left.z;
                 }
-                
-                int abgr = p.color.asIntABGR();
-                colors.putInt(abgr);
-                colors.putInt(abgr);
-                colors.putInt(abgr);
-                colors.putInt(abgr);
+                float size = p.size;
+                putInterleavedParticle(data, p,
+                        upX * size, upY * size, upZ * size,
+                        leftX * size, leftY * size, leftZ * size);
             } else {
-                positions.put(0)
-                        .put(0)
-                        .put(0);
-
-                positions.put(0)
-                        .put(0)
-                        .put(0);
-
-                positions.put(0)
-                        .put(0)
-                        .put(0);
-
-                positions.put(0)
-                        .put(0)
-                        .put(0);
-                
-                colors.putInt(0);
-                colors.putInt(0);
-                colors.putInt(0);
-                colors.putInt(0);
-                
-                if (uniqueTexCoords) {
-                    texcoords.put(0).put(1);
-                    texcoords.put(1).put(1);
-                    texcoords.put(0).put(0);
-                    texcoords.put(1).put(0);
-                }
+                putInactiveInterleavedParticle(data);
             }
+        }
 
+        data.flip();
+
+        // force renderer to re-send data to GPU
+        ivb.updateData(data);
+    }
+
+    private void putInterleavedParticle(ByteBuffer data, ParticleData p,
+            float upX, float upY, float upZ, float leftX, float leftY, float leftZ) {
+
+        float x = p.position.x;
+        float y = p.position.y;
+        float z = p.position.z;
+        int abgr = p.color.asIntABGR();
+
+        // Index into the sprite table, each vertex uses either the start or end of each axis
+        int start = uniqueTexCoords ? getSpriteUVOffset(p.spriteIndex) : 0;
+        int end = start + 2;
+
+        putInterleavedVertex(data, x + leftX + upX, y + leftY + upY, z + leftZ + upZ, abgr, start, end + 1);
+        putInterleavedVertex(data, x - leftX + upX, y - leftY + upY, z - leftZ + upZ, abgr, end, end + 1);
+        putInterleavedVertex(data, x + leftX - upX, y + leftY - upY, z + leftZ - upZ, abgr, start, start + 1);
+        putInterleavedVertex(data, x - leftX - upX, y - leftY - upY, z - leftZ - upZ, abgr, end, start + 1);
+    }
+
+    private void putInactiveInterleavedParticle(ByteBuffer data) {
+        putInterleavedVertex(data, 0, 0, 0, 0, 0, 3);
+        putInterleavedVertex(data, 0, 0, 0, 0, 2, 3);
+        putInterleavedVertex(data, 0, 0, 0, 0, 0, 1);
+        putInterleavedVertex(data, 0, 0, 0, 0, 2, 1);
+    }
+
+    private void putInterleavedVertex(ByteBuffer data, float x, float y, float z, int abgr, int u, int v) {
+        data.putFloat(x).putFloat(y).putFloat(z);
+        data.putInt(abgr);
+        if (texCoordFormat == VertexBuffer.Format.Float) {
+            data.putFloat(spriteUVs[u]).putFloat(spriteUVs[v]);
+        } else {
+            data.putShort(spriteUVShorts[u]).putShort(spriteUVShorts[v]);
         }
+    }
 
-        positions.flip();
-        colors.flip();
-        
-        if (uniqueTexCoords) {
-            texcoords.flip();
-            tvb.updateData(texcoords);
+    private void putTexCoords(float[] texcoords, ParticleData[] particles, int[] order, int start, int end) {
+        int tex = 0;
+        for (int i = start; i < end; i++) {
+            ParticleData p = particles[order[i]];
+
+            if (p.active) {
+                int uv = getSpriteUVOffset(p.spriteIndex);
+                float startX = spriteUVs[uv];
+                float startY = spriteUVs[uv + 1];
+                float endX = spriteUVs[uv + 2];
+                float endY = spriteUVs[uv + 3];
+
+                texcoords[tex] = startX; texcoords[tex + 1] = endY;
+                texcoords[tex + 2] = endX; texcoords[tex + 3] = endY;
+                texcoords[tex + 4] = startX; texcoords[tex + 5] = startY;
+                texcoords[tex + 6] = endX; texcoords[tex + 7] = startY;
+            } else {
+                texcoords[tex] = 0; texcoords[tex + 1] = 1;
+                texcoords[tex + 2] = 1; texcoords[tex + 3] = 1;
+                texcoords[tex + 4] = 0; texcoords[tex + 5] = 0;
+                texcoords[tex + 6] = 1; texcoords[tex + 7] = 0;
+            }
+            tex += 8;
         }
+    }
 
-        // force renderer to re-send data to GPU
-        pvb.updateData(positions);
-        cvb.updateData(colors);
-        
-        updateCounts();
+    private void putTexCoords(short[] texcoords, ParticleData[] particles, int[] order, int start, int end) {
+        int tex = 0;
+        for (int i = start; i < end; i++) {
+            ParticleData p = particles[order[i]];
+
+            if (p.active) {
+                int uv = getSpriteUVOffset(p.spriteIndex);
+                short startX = spriteUVShorts[uv];
+                short startY = spriteUVShorts[uv + 1];
+                short endX = spriteUVShorts[uv + 2];
+                short endY = spriteUVShorts[uv + 3];
+
+                texcoords[tex] = startX; texcoords[tex + 1] = endY;
+                texcoords[tex + 2] = endX; texcoords[tex + 3] = endY;
+                texcoords[tex + 4] = startX; texcoords[tex + 5] = startY;
+                texcoords[tex + 6] = endX; texcoords[tex + 7] = startY;
+            } else {
+                texcoords[tex] = 0; texcoords[tex + 1] = UV_ONE;
+                texcoords[tex + 2] = UV_ONE; texcoords[tex + 3] = UV_ONE;
+                texcoords[tex + 4] = 0; texcoords[tex + 5] = 0;
+                texcoords[tex + 6] = UV_ONE; texcoords[tex + 7] = 0;
+            }
+            tex += 8;
+        }
+    }
+
+    /**
+     * The working storage for one fill task. Particles are written into the arrays
+     * a block at a time and then copied into the buffers with a single bulk put.
+     */
+    private static class FillStaging {
+
+        final Vector3f up = new Vector3f();
+        final Vector3f left = new Vector3f();
+        final Vector3f dir = new Vector3f();
+
+        final float[] positions = new float[STAGING_PARTICLES * 12];
+        final int[] colors = new int[STAGING_PARTICLES * 4];
+        final float[] texcoords = new float[STAGING_PARTICLES * 8];
+        final short[] shortTexCoords = new short[STAGING_PARTICLES * 8];
     }
 }
@@ -31,7 +31,6 @@
  */
 package com.jme3.particles.mesh;
 
-import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
 import com.jme3.particles.ParticleController;
@@ -49,7 +48,9 @@ public abstract class QuadMeshBillboardStrategy {
     private static final Quaternion workingQ = new Quaternion();
 
     /**
-     * Called by the QuadMesh to update each particle
+     * Called by the QuadMesh to update each particle. When the QuadMesh is filled in
+     * parallel this is called from several threads at once, so must not use any
+     * shared working storage.
      * 
      * @param cam The camera on which the particle is being displayed
      * @param p The data for the particle being displayed
@@ -58,6 +59,42 @@ public abstract class QuadMeshBillboardStrategy {
      * @param dir Store into this the desired direction vector for the particle
      */
     public abstract void billboard(Camera cam, ParticleController ctrlr, ParticleData p, Vector3f up, Vector3f left, Vector3f dir);
+
+    /**
+     * Called by the QuadMesh once each frame before any particles are billboarded.
+     * Strategies that give the same result for every particle should store that
+     * result into up, left and dir here and return false from isPerParticle(),
+     * in which case billboard() will not be called at all for this frame.
+     * 
+     * Strategies that are per-particle can use this to cache any values that are
+     * constant for the frame. The default implementation does nothing.
+     * 
+     * @param cam The camera on which the particles are being displayed
+     * @param ctrlr The controller whose particles are being displayed
+     * @param up Store into this the desired up vector for all particles
+     * @param left Store into this the desired left vector for all particles
+     * @param dir Store into this the desired direction vector for all particles
+     */
+    public void prepareFrame(Camera cam, ParticleController ctrlr, Vector3f up, Vector3f left, Vector3f dir) {
+    }
+
+    /**
+     * @return true if billboard() needs to be called for each particle, false if the
+     * vectors stored by prepareFrame() apply to every particle in the frame. The
+     * default implementation returns true.
+     */
+    public boolean isPerParticle() {
+        return true;
+    }
+
+    /**
+     * @return true if the vectors depend on the camera, so the particles need
+     * billboarding again for each camera they are displayed on. The default
+     * implementation returns true.
+     */
+    public boolean isCameraDependent() {
+        return true;
+    }
     
     /**
      * This billboards all particles in their current direction of travel, with Y axis up
@@ -71,6 +108,10 @@ public abstract class QuadMeshBillboardStrategy {
             dir.set(p.velocity);
         }
 
+        @Override
+        public boolean isCameraDependent() {
+            return false;
+        }
     };
     
     /**
@@ -83,9 +124,15 @@ public abstract class QuadMeshBillboardStrategy {
                 up.set(p.velocity).crossLocal(Vector3f.UNIT_Y).normalizeLocal();
                 left.set(p.velocity).crossLocal(up).normalizeLocal();
                 dir.set(p.velocity);
-                workingQ.fromAngleAxis(-90*FastMath.DEG_TO_RAD, left);
-                workingQ.multLocal(left);
-                workingQ.multLocal(up);
+                // Rotate up by -90 degrees around left, which leaves left unchanged.
+                // As up and left are perpendicular unit vectors this is up x left,
+                // and avoids a shared working quaternion.
+                up.crossLocal(left);
+        }
+
+        @Override
+        public boolean isCameraDependent() {
+            return false;
         }
     };
     
@@ -106,6 +153,11 @@ public abstract class QuadMeshBillboardStrategy {
             p.rotation.multLocal(dir);
             
         }
+
+        @Override
+        public boolean isCameraDependent() {
+            return false;
+        }
     };
 
     /**
@@ -120,6 +172,16 @@ public abstract class QuadMeshBillboardStrategy {
             left.set(cam.getLeft());
             dir.set(cam.getDirection());
         }
+
+        @Override
+        public void prepareFrame(Camera cam, ParticleController ctrlr, Vector3f up, Vector3f left, Vector3f dir) {
+            billboard(cam, ctrlr, null, up, left, dir);
+        }
+
+        @Override
+        public boolean isPerParticle() {
+            return false;
+        }
     };
 
     /**
@@ -137,6 +199,16 @@ public abstract class QuadMeshBillboardStrategy {
             workingQ.mult(cam.getLeft(), left);
             workingQ.mult(cam.getDirection(), dir);
         }
+
+        @Override
+        public void prepareFrame(Camera cam, ParticleController ctrlr, Vector3f up, Vector3f left, Vector3f dir) {
+            billboard(cam, ctrlr, null, up, left, dir);
+        }
+
+        @Override
+        public boolean isPerParticle() {
+            return false;
+        }
     };
 
     /**
@@ -166,6 +238,21 @@ public abstract class QuadMeshBillboardStrategy {
             left.set(this.left);
             dir.set(this.dir);
         }
+
+        @Override
+        public void prepareFrame(Camera cam, ParticleController ctrlr, Vector3f up, Vector3f left, Vector3f dir) {
+            billboard(cam, ctrlr, null, up, left, dir);
+        }
+
+        @Override
+        public boolean isPerParticle() {
+            return false;
+        }
+
+        @Override
+        public boolean isCameraDependent() {
+            return false;
+        }
     }
 
     /**
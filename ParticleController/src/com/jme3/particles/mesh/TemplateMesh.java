@@ -32,25 +32,35 @@
 package com.jme3.particles.mesh;
 
 import com.jme3.material.Material;
-import com.jme3.math.Transform;
-import com.jme3.math.Vector3f;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleMesh;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.util.BufferUtils;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
+import java.nio.IntBuffer;
 
 /**
  * The TemplateMesh takes an arrow of templates, each of which is a mesh of its
  * own. It then uses a mesh selected from the templates to represent each particle.
  * 
- * The mesh to be used is specified in the spriteCol field so a RandomSpriteInfluencer
+ * The mesh to be used is specified in the spriteIndex field so a RandomSpriteInfluencer
  * can be used to have a template selected at random for each particle as it is spawned.
+ * 
+ * The template data is copied into arrays when the TemplateMesh is constructed, so
+ * changes made to the template meshes after that point will not be seen.
+ * 
+ * Each particle is given a fixed slot in the vertex and index buffers, large enough
+ * for the largest template. Texture coordinates, colors and indices only depend on
+ * which template is in each slot so they are only rewritten for slots where that
+ * changes, with unused index space filled by degenerate triangles.
  */
 public class TemplateMesh extends ParticleMesh {
 
@@ -60,8 +70,23 @@ public class TemplateMesh extends ParticleMesh {
     private boolean useVertexColors;
     private boolean useNormals;
 
-    private static final Transform particleTransform = new Transform();
-    private static final Vector3f working = new Vector3f();
+    private float[][] templatePositions;
+    private float[][] templateNormals;
+    private float[][] templateTexCoords;
+    private byte[][] templateColors;
+    private int[][] templateIndexes;
+
+    private IndexBuffer indexes;
+    // The template last written into each slot, or -1 if the slot was inactive
+    private int[] slotTemplates;
+    private int usedSlots;
+    // True when the index buffer holds the depth sorted order rather than slot order
+    private boolean indexesSorted;
+    // Working storage for each fill task, holding one transformed slot
+    private float[][] stagingPositions;
+    private float[][] stagingNormals;
+    // The furthest any template vertex is from the origin of its template
+    private float templateRadius;
     
     public TemplateMesh(Material material, boolean useVertexColors, boolean useNormals, Mesh... templates) {
         super(material, templates.length, 1);
@@ -70,8 +95,15 @@ public class TemplateMesh extends ParticleMesh {
         this.templates = templates;
         largestMeshVertices = 0;
         largestMeshTriangles = 0;
+
+        templatePositions = new float[templates.length][];
+        templateNormals = new float[templates.length][];
+        templateTexCoords = new float[templates.length][];
+        templateColors = new byte[templates.length][];
+        templateIndexes = new int[templates.length][];
         
-        for (Mesh m: templates) {
+        for (int i = 0; i < templates.length; i++) {
+            Mesh m = templates[i];
             int count = m.getVertexCount();
             if (count > largestMeshVertices) {
                 largestMeshVertices = count;
@@ -80,7 +112,46 @@ public class TemplateMesh extends ParticleMesh {
             if (count > largestMeshTriangles) {
                 largestMeshTriangles = count;
             }
+
+            templatePositions[i] = toArray(m.getFloatBuffer(VertexBuffer.Type.Position));
+            float[] positions = templatePositions[i];
+            for (int j = 0; j < positions.length; j += 3) {
+                float distanceSquared = positions[j] * positions[j] + positions[j + 1] * positions[j + 1] + positions[j + 2] * positions[j + 2];
+                if (distanceSquared > templateRadius * templateRadius) {
+                    templateRadius = FastMath.sqrt(distanceSquared);
+                }
+            }
+            templateTexCoords[i] = toArray(m.getFloatBuffer(VertexBuffer.Type.TexCoord));
+            if (useNormals) {
+                templateNormals[i] = toArray(m.getFloatBuffer(VertexBuffer.Type.Normal));
+            }
+            if (useVertexColors) {
+                ByteBuffer sourceCol = (ByteBuffer) m.getBuffer(VertexBuffer.Type.Color).getData();
+                templateColors[i] = new byte[sourceCol.limit()];
+                for (int j = 0; j < templateColors[i].length; j++) {
+                    templateColors[i][j] = sourceCol.get(j);
+                }
+            }
+
+            IndexBuffer sourceIndex = m.getIndexBuffer();
+            int vertices = m.getVertexCount();
+            templateIndexes[i] = new int[sourceIndex.size()];
+            for (int j = 0; j < templateIndexes[i].length; j++) {
+                int index = sourceIndex.get(j);
+                if (index >= vertices) {
+                    throw new IllegalArgumentException("Template "+i+" triangle index "+index+" outside triangle bounds");
+                }
+                templateIndexes[i][j] = index;
+            }
+        }
+    }
+
+    private static float[] toArray(FloatBuffer buffer) {
+        float[] result = new float[buffer.limit()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buffer.get(i);
         }
+        return result;
     }
     
     @Override
@@ -88,6 +159,13 @@ public class TemplateMesh extends ParticleMesh {
 
         int numParticles = controller.getMaxParticles();
 
+        slotTemplates = new int[numParticles];
+        for (int i = 0; i < numParticles; i++) {
+            slotTemplates[i] = -1;
+        }
+        usedSlots = 0;
+        indexesSorted = false;
+
         // set positions
         FloatBuffer pb = BufferUtils.createVector3Buffer(numParticles * largestMeshVertices);
         // if the buffer is already set only update the data
@@ -124,7 +202,7 @@ public class TemplateMesh extends ParticleMesh {
                 buf.updateData(cb);
             } else {
                 VertexBuffer cvb = new VertexBuffer(VertexBuffer.Type.Color);
-                cvb.setupData(VertexBuffer.Usage.Stream, 4, VertexBuffer.Format.UnsignedByte, cb);
+                cvb.setupData(VertexBuffer.Usage.Dynamic, 4, VertexBuffer.Format.UnsignedByte, cb);
                 cvb.setNormalized(true);
                 setBuffer(cvb);
             }
@@ -143,15 +221,22 @@ public class TemplateMesh extends ParticleMesh {
             setBuffer(buf);
         }
 
-        // set indices
-        ShortBuffer ib = BufferUtils.createShortBuffer(numParticles * largestMeshTriangles * 3);
+        // set indices, switching to ints if there are too many vertices to index with shorts
+        indexes = IndexBuffer.createIndexBuffer(numParticles * largestMeshVertices, numParticles * largestMeshTriangles * 3);
+        Buffer ib = indexes.getBuffer();
+        ib.limit(0);
+        VertexBuffer.Format indexFormat = ib instanceof IntBuffer ? VertexBuffer.Format.UnsignedInt : VertexBuffer.Format.UnsignedShort;
 
         buf = getBuffer(VertexBuffer.Type.Index);
+        if (buf != null && buf.getFormat() != indexFormat) {
+            clearBuffer(VertexBuffer.Type.Index);
+            buf = null;
+        }
         if (buf != null) {
             buf.updateData(ib);
         } else {
             VertexBuffer ivb = new VertexBuffer(VertexBuffer.Type.Index);
-            ivb.setupData(VertexBuffer.Usage.Static, 3, VertexBuffer.Format.UnsignedShort, ib);
+            ivb.setupData(VertexBuffer.Usage.Dynamic, 3, indexFormat, ib);
             setBuffer(ivb);
         }
 
@@ -162,7 +247,7 @@ public class TemplateMesh extends ParticleMesh {
     public void updateParticleData(Camera cam, ParticleController controller) {
 
         VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
-        FloatBuffer positions = (FloatBuffer) pvb.getData();
+        final FloatBuffer positions = (FloatBuffer) pvb.getData();
 
         VertexBuffer cvb = null;
         ByteBuffer colors = null;
@@ -172,19 +257,14 @@ public class TemplateMesh extends ParticleMesh {
             colors = (ByteBuffer) cvb.getData();
         }
 
-        VertexBuffer nvb = null;
-        FloatBuffer normals = null;
-
-        if (useNormals) {
-            nvb = getBuffer(VertexBuffer.Type.Normal);
-            normals = (FloatBuffer) nvb.getData();
-        }
+        VertexBuffer nvb = useNormals ? getBuffer(VertexBuffer.Type.Normal) : null;
+        final FloatBuffer normals = useNormals ? (FloatBuffer) nvb.getData() : null;
         
         VertexBuffer tvb = getBuffer(VertexBuffer.Type.TexCoord);
         FloatBuffer texcoords = (FloatBuffer) tvb.getData();
 
         VertexBuffer ib = getBuffer(VertexBuffer.Type.Index);
-        ShortBuffer indexes = (ShortBuffer) ib.getData();
+        Buffer indexData = indexes.getBuffer();
         
         // update data in vertex buffers
         positions.clear();
@@ -195,102 +275,216 @@ public class TemplateMesh extends ParticleMesh {
             normals.clear();
         }
         texcoords.clear();
-        indexes.clear();
+        indexData.clear();
         
-        ParticleData[] particles = controller.getParticles();
+        final ParticleData[] particles = controller.getParticles();
+        boolean templatesChanged = false;
+        int lastUsedSlots = usedSlots;
+        usedSlots = 0;
 
         for (int i = 0; i < particles.length; i++) {
             ParticleData p = particles[i];
 
             if (p.active) {
-
-                particleTransform.setTranslation(p.position);
-                particleTransform.setRotation(p.rotation);
-                particleTransform.setScale(p.size);
-                
-                int startIndex = positions.position()/3;
-                Mesh template = templates[p.spriteCol];
-                FloatBuffer sourcePos = template.getFloatBuffer(VertexBuffer.Type.Position);
-                sourcePos.rewind();
-                
-                while (sourcePos.hasRemaining()) {
-                    working.set(sourcePos.get(), sourcePos.get(), sourcePos.get());
-                    particleTransform.transformVector(working, working);
-                    positions.put(working.x).put(working.y).put(working.z);
-                }
-                
-                if (useVertexColors) {
-                    ByteBuffer sourceCol = (ByteBuffer)template.getBuffer(VertexBuffer.Type.Color).getData();
-                    sourceCol.rewind();
-                    colors.put(sourceCol);
+                int template = wrapSpriteIndex(p.spriteIndex, templates.length);
+                if (slotTemplates[i] != template) {
+                    writeSlot(i, template, colors, texcoords);
+                    templatesChanged = true;
                 }
+                usedSlots = i + 1;
+            } else if (slotTemplates[i] != -1) {
+                clearSlot(i);
+                templatesChanged = true;
+            }
+        }
 
-                if (useNormals) {
-                    FloatBuffer sourceNorm = template.getFloatBuffer(VertexBuffer.Type.Normal);
-                    sourceNorm.rewind();
+        if (stagingPositions == null || stagingPositions.length < fillTasks) {
+            stagingPositions = new float[fillTasks][largestMeshVertices * 3];
+            stagingNormals = useNormals ? new float[fillTasks][largestMeshVertices * 3] : null;
+        }
 
-                    while (sourceNorm.hasRemaining()) {
-                        working.set(sourceNorm.get(), sourceNorm.get(), sourceNorm.get());
-                        p.rotation.mult(working, working);
-                        normals.put(working.x).put(working.y).put(working.z);
+        // Every slot has its own part of the buffers so ranges of slots can be
+        // transformed at the same time
+        fillRanges(usedSlots, new FillRange() {
+            public void fill(int task, int start, int end) {
+                FloatBuffer positionsOut = getTaskBuffer(positions, task);
+                FloatBuffer normalsOut = useNormals ? getTaskBuffer(normals, task) : null;
+                for (int i = start; i < end; i++) {
+                    ParticleData p = particles[i];
+                    if (p.active) {
+                        transformSlot(task, i, p, positionsOut, normalsOut);
                     }
                 }
-                
-                FloatBuffer sourceTex = template.getFloatBuffer(VertexBuffer.Type.TexCoord);
-                sourceTex.rewind();
-                texcoords.put(sourceTex);
-                
-                int newIndex = 0;
-                int pos = positions.position();
-                
-                ShortBuffer sourceIndex = template.getShortBuffer(VertexBuffer.Type.Index);
-                sourceIndex.rewind();
-                while (sourceIndex.hasRemaining()) {
-                    newIndex = sourceIndex.get() + startIndex;
-                    if (newIndex >= Short.MAX_VALUE) {
-                        throw new IllegalStateException("TemplateMesh index count rose higher than can fit in a short!");
-                    }
-                    if (newIndex >= pos) {
-                        throw new IllegalStateException("Template "+p.spriteCol+" triangle index "+(newIndex-startIndex)+" outside triangle bounds");
-                    }
-                    indexes.put((short)newIndex);
-                }
             }
+        });
 
+        int indexCount = usedSlots * largestMeshTriangles * 3;
+        boolean sorted = depthSorter != null && cam != null;
+        if (sorted) {
+            indexCount = writeSortedIndexes(particles, getDrawOrder(cam, controller));
+            indexesSorted = true;
+        } else if (indexesSorted) {
+            // Put the indices back in slot order
+            for (int i = 0; i < slotTemplates.length; i++) {
+                if (slotTemplates[i] == -1) {
+                    clearSlot(i);
+                } else {
+                    writeSlotIndexes(i, slotTemplates[i]);
+                }
+            }
+            indexesSorted = false;
+            templatesChanged = true;
         }
-        
-        positions.mark();
-        while (positions.hasRemaining()) {
-            positions.put(0).put(0).put(0);
-        }
 
-        positions.reset();
-        positions.flip();
+        // Only the slots up to the last active particle need to be sent
+        int usedVertices = usedSlots * largestMeshVertices;
+
+        positions.position(0).limit(usedVertices * 3);
         pvb.updateData(positions);
 
-        indexes.mark();
-        while (indexes.hasRemaining()) {
-            indexes.put((short)0).put((short)0).put((short)0);
-        }
-        indexes.reset();
-        indexes.flip();
-        ib.updateData(indexes);
-        
-        if (useVertexColors) {
-            colors.flip();
-            cvb.updateData(colors);
-        }
-        
         if (useNormals) {
-            normals.flip();
+            normals.position(0).limit(usedVertices * 3);
             nvb.updateData(normals);
         }
-        
-        texcoords.flip();
-        tvb.updateData(texcoords);
 
+        indexData.position(0).limit(indexCount);
+        texcoords.position(0).limit(usedVertices * 2);
+        if (useVertexColors) {
+            colors.position(0).limit(usedVertices * 4);
+        }
+
+        // The rest only need sending if the templates in use have changed
+        if (sorted || templatesChanged || usedSlots != lastUsedSlots) {
+            ib.updateData(indexData);
+        }
+        if (templatesChanged || usedSlots != lastUsedSlots) {
+            tvb.updateData(texcoords);
+            if (useVertexColors) {
+                cvb.updateData(colors);
+            }
+        }
         
         updateCounts();
     }
+
+    /**
+     * Writes the data which only depends on the template into a slot. The positions
+     * and normals are written every frame by transformSlot().
+     */
+    private void writeSlot(int slot, int template, ByteBuffer colors, FloatBuffer texcoords) {
+        slotTemplates[slot] = template;
+
+        int startVertex = slot * largestMeshVertices;
+
+        if (useVertexColors) {
+            colors.position(startVertex * 4);
+            colors.put(templateColors[template]);
+        }
+
+        texcoords.position(startVertex * 2);
+        texcoords.put(templateTexCoords[template]);
+
+        writeSlotIndexes(slot, template);
+    }
+
+    private void writeSlotIndexes(int slot, int template) {
+        int startVertex = slot * largestMeshVertices;
+        int[] sourceIndex = templateIndexes[template];
+        int startIndex = slot * largestMeshTriangles * 3;
+        for (int i = 0; i < sourceIndex.length; i++) {
+            indexes.put(startIndex + i, sourceIndex[i] + startVertex);
+        }
+        // Fill the rest of the slot with degenerate triangles
+        for (int i = sourceIndex.length; i < largestMeshTriangles * 3; i++) {
+            indexes.put(startIndex + i, startVertex);
+        }
+    }
+
+    private void clearSlot(int slot) {
+        slotTemplates[slot] = -1;
+
+        int startVertex = slot * largestMeshVertices;
+        int startIndex = slot * largestMeshTriangles * 3;
+        for (int i = 0; i < largestMeshTriangles * 3; i++) {
+            indexes.put(startIndex + i, startVertex);
+        }
+    }
+
+    @Override
+    protected float getParticleRadius() {
+        return templateRadius;
+    }
+
+    /**
+     * Writes the indices of the active particles in the given order, so that the
+     * particles are drawn in that order whatever slot they are in.
+     * 
+     * @return The number of indices written
+     */
+    private int writeSortedIndexes(ParticleData[] particles, int[] order) {
+        int index = 0;
+        for (int k = 0; k < order.length; k++) {
+            int slot = order[k];
+            if (!particles[slot].active) {
+                // The active particles all come first
+                break;
+            }
+            int[] sourceIndex = templateIndexes[slotTemplates[slot]];
+            int startVertex = slot * largestMeshVertices;
+            for (int i = 0; i < sourceIndex.length; i++) {
+                indexes.put(index++, sourceIndex[i] + startVertex);
+            }
+        }
+        return index;
+    }
+
+    private void transformSlot(int task, int slot, ParticleData p, FloatBuffer positions, FloatBuffer normals) {
+
+        // Build the rotation matrix for the particle, in the same way as Quaternion.toRotationMatrix
+        Quaternion q = p.rotation;
+        float norm = q.norm();
+        float s = (norm == 1f) ? 2f : (norm > 0f) ? 2f / norm : 0;
+
+        float xs = q.getX() * s, ys = q.getY() * s, zs = q.getZ() * s;
+        float xx = q.getX() * xs, xy = q.getX() * ys, xz = q.getX() * zs;
+        float xw = q.getW() * xs, yy = q.getY() * ys, yz = q.getY() * zs;
+        float yw = q.getW() * ys, zz = q.getZ() * zs, zw = q.getW() * zs;
+
+        float m00 = 1 - (yy + zz), m01 = xy - zw, m02 = xz + yw;
+        float m10 = xy + zw, m11 = 1 - (xx + zz), m12 = yz - xw;
+        float m20 = xz - yw, m21 = yz + xw, m22 = 1 - (xx + yy);
+
+        float size = p.size;
+        float tx = p.position.x, ty = p.position.y, tz = p.position.z;
+
+        int start = slot * largestMeshVertices * 3;
+
+        // Scale, then rotate, then translate - matching Transform.transformVector
+        int template = slotTemplates[slot];
+        float[] source = templatePositions[template];
+        // Transform into the staging array then copy the whole slot in one go
+        float[] staging = stagingPositions[task];
+        for (int i = 0; i < source.length; i += 3) {
+            float x = source[i] * size, y = source[i + 1] * size, z = source[i + 2] * size;
+            staging[i] = m00 * x + m01 * y + m02 * z + tx;
+            staging[i + 1] = m10 * x + m11 * y + m12 * z + ty;
+            staging[i + 2] = m20 * x + m21 * y + m22 * z + tz;
+        }
+        positions.position(start);
+        positions.put(staging, 0, source.length);
+
+        if (useNormals) {
+            source = templateNormals[template];
+            staging = stagingNormals[task];
+            for (int i = 0; i < source.length; i += 3) {
+                float x = source[i], y = source[i + 1], z = source[i + 2];
+                staging[i] = m00 * x + m01 * y + m02 * z;
+                staging[i + 1] = m10 * x + m11 * y + m12 * z;
+                staging[i + 2] = m20 * x + m21 * y + m22 * z;
+            }
+            normals.position(start);
+            normals.put(staging, 0, source.length);
+        }
+    }
     
 }
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleMesh;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * This class implements ParticleMesh and draws a ribbon trailing behind each
+ * particle, following the path it has taken.
+ * 
+ * Each particle keeps a ring of trailLength points along its path, each point
+ * being two vertices either side of the path with the particle size as the half
+ * width. The newest point follows the particle every frame, and once it is
+ * segmentLength from the point before it a new point is started. The points are
+ * recorded every frame as the particles are updated, even while the trails are
+ * not visible, so that the trails are complete when they come into view. Only the
+ * points and segments that changed since the mesh was last filled are written
+ * into the buffers, so the cost per frame does not depend on the length of the
+ * trails, and all of the buffers are allocated up front so nothing is allocated
+ * while running.
+ * 
+ * Each point keeps the color and the facing it had when it was recorded. The
+ * ribbon is turned to face the camera the trails were last displayed on at that
+ * time, so trails should be short compared to how quickly the camera turns. Depth
+ * sorting, sprites, the interleaved layout and the texture coordinate format do
+ * not apply to a TrailMesh.
+ */
+public class TrailMesh extends ParticleMesh {
+
+    private static final Vector3f side = new Vector3f();
+
+    private final int trailLength;
+    private float segmentLength;
+
+    // The ring slot of the newest point, and the number of points recorded, for
+    // each particle
+    private int[] heads;
+    private int[] counts;
+    // Used to spot particles that have died or been emitted again since the last frame
+    private float[] lastLife;
+    private boolean[] wasActive;
+
+    // The vertex positions and colors of every point recorded, which are copied
+    // into the buffers when the mesh is filled
+    private float[] vertices;
+    private int[] vertexColors;
+    private IndexBuffer indexes;
+
+    // The length of the finished segment ending at each point, and for each
+    // particle the total length of its finished segments and the widest point
+    // recorded, which together bound the trail without visiting its points
+    private float[] segmentLengths;
+    private float[] trailLengths;
+    private float[] trailWidths;
+
+    // The points written since the mesh was last filled
+    private boolean[] pointChanged;
+    private int[] changedPoints;
+    private int changedCount;
+    private boolean colorsChanged;
+    private boolean indexesChanged;
+
+    // The direction of the camera the trails were last displayed on
+    private final Vector3f facing = new Vector3f(Vector3f.UNIT_Y);
+
+    /**
+     * Construct a new TrailMesh that colors the trails using the particle colors.
+     * 
+     * @param assetManager The AssetManager to use.
+     * @param trailLength The number of points in each trail, at least 2
+     * @param segmentLength The distance between the points of each trail
+     */
+    public TrailMesh(AssetManager assetManager, int trailLength, float segmentLength) {
+        this(new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md"), trailLength, segmentLength);
+        material.setBoolean("VertexColor", true);
+        material.getAdditionalRenderState().setBlendMode(RenderState.BlendMode.Alpha);
+        material.getAdditionalRenderState().setFaceCullMode(RenderState.FaceCullMode.Off);
+    }
+
+    /**
+     * Construct a new TrailMesh which will use the supplied material. The material
+     * should use the vertex colors.
+     * 
+     * @param material The material to use
+     * @param trailLength The number of points in each trail, at least 2
+     * @param segmentLength The distance between the points of each trail
+     */
+    public TrailMesh(Material material, int trailLength, float segmentLength) {
+        super(material, 1, 1);
+        if (trailLength < 2) {
+            throw new IllegalArgumentException("A trail needs at least 2 points");
+        }
+        this.trailLength = trailLength;
+        this.segmentLength = segmentLength;
+    }
+
+    /**
+     * @return The number of points in each trail
+     */
+    public int getTrailLength() {
+        return trailLength;
+    }
+
+    /**
+     * @return The distance between the points of each trail
+     */
+    public float getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * @param segmentLength The distance between the points of each trail. Existing
+     * points are not moved.
+     */
+    public void setSegmentLength(float segmentLength) {
+        this.segmentLength = segmentLength;
+    }
+
+    @Override
+    public void initializeParticleData(ParticleController controller) {
+        int numParticles = controller.getMaxParticles();
+        int numVertices = numParticles * trailLength * 2;
+
+        setMode(Mesh.Mode.Triangles);
+
+        heads = new int[numParticles];
+        counts = new int[numParticles];
+        lastLife = new float[numParticles];
+        wasActive = new boolean[numParticles];
+        vertices = new float[numVertices * 3];
+        vertexColors = new int[numVertices];
+        segmentLengths = new float[numParticles * trailLength];
+        trailLengths = new float[numParticles];
+        trailWidths = new float[numParticles];
+        pointChanged = new boolean[numParticles * trailLength];
+        changedPoints = new int[numParticles * trailLength];
+        changedCount = 0;
+        colorsChanged = false;
+        indexesChanged = false;
+
+        // set positions
+        FloatBuffer pb = BufferUtils.createVector3Buffer(numVertices);
+
+        //if the buffer is already set only update the data
+        VertexBuffer buf = getBuffer(VertexBuffer.Type.Position);
+        if (buf != null) {
+            buf.updateData(pb);
+        } else {
+            VertexBuffer pvb = new VertexBuffer(VertexBuffer.Type.Position);
+            pvb.setupData(VertexBuffer.Usage.Stream, 3, VertexBuffer.Format.Float, pb);
+            setBuffer(pvb);
+        }
+
+        // set colors
+        ByteBuffer cb = BufferUtils.createByteBuffer(numVertices * 4);
+
+        buf = getBuffer(VertexBuffer.Type.Color);
+        if (buf != null) {
+            buf.updateData(cb);
+        } else {
+            VertexBuffer cvb = new VertexBuffer(VertexBuffer.Type.Color);
+            cvb.setupData(VertexBuffer.Usage.Stream, 4, VertexBuffer.Format.UnsignedByte, cb);
+            cvb.setNormalized(true);
+            setBuffer(cvb);
+        }
+
+        // set indices, every segment of every trail has two triangles which start
+        // off degenerate until the trail reaches them
+        indexes = IndexBuffer.createIndexBuffer(numVertices, numParticles * trailLength * 6);
+        Buffer ib = indexes.getBuffer();
+        buf = getBuffer(VertexBuffer.Type.Index);
+        if (buf != null && buf.getFormat() == (ib instanceof IntBuffer ? VertexBuffer.Format.UnsignedInt : VertexBuffer.Format.UnsignedShort)) {
+            buf.updateData(ib);
+        } else {
+            clearBuffer(VertexBuffer.Type.Index);
+            VertexBuffer ivb = new VertexBuffer(VertexBuffer.Type.Index);
+            ivb.setupData(VertexBuffer.Usage.Dynamic, 3,
+                    ib instanceof IntBuffer ? VertexBuffer.Format.UnsignedInt : VertexBuffer.Format.UnsignedShort, ib);
+            setBuffer(ivb);
+        }
+
+        updateCounts();
+    }
+
+    @Override
+    public boolean isCameraDependent() {
+        // The points are recorded as the particles are updated rather than for
+        // each camera, so filling again for other cameras would change nothing
+        return false;
+    }
+
+    @Override
+    public void particlesUpdated(ParticleController controller) {
+        ParticleData[] particles = controller.getParticles();
+        float segmentLengthSquared = segmentLength * segmentLength;
+
+        for (int i = 0; i < particles.length; i++) {
+            ParticleData p = particles[i];
+
+            if (!p.active) {
+                if (wasActive[i]) {
+                    clearTrail(i);
+                    wasActive[i] = false;
+                }
+                continue;
+            }
+
+            side.set(p.velocity).crossLocal(facing);
+            float length = side.length();
+            if (length > 0) {
+                side.multLocal(p.size / length);
+            }
+
+            if (!wasActive[i] || p.life > lastLife[i]) {
+                // A new particle, start its trail from scratch. The first point stays
+                // where the particle was emitted and the second follows it, so the
+                // distance to the next point is measured from where it started.
+                clearTrail(i);
+                recordPoint(i, 0, p, side);
+                heads[i] = 1;
+                counts[i] = 2;
+                putSegment(i, 1);
+                wasActive[i] = true;
+            } else if (distanceSquared(i, heads[i], p.position) > segmentLengthSquared) {
+                // The newest point is far enough from the last one to keep it and
+                // start a new one
+                int base = i * trailLength;
+                float finished = FastMath.sqrt(centreDistanceSquared(i, heads[i]));
+                segmentLengths[base + heads[i]] = finished;
+                trailLengths[i] += finished;
+
+                int head = (heads[i] + 1) % trailLength;
+                heads[i] = head;
+                if (counts[i] < trailLength) {
+                    counts[i]++;
+                }
+                putSegment(i, head);
+
+                // The oldest segment is dropped to make room once the ring is full
+                int dropped = (head + 1) % trailLength;
+                putDegenerateSegment(i, dropped);
+                trailLengths[i] = Math.max(0, trailLengths[i] - segmentLengths[base + dropped]);
+                segmentLengths[base + dropped] = 0;
+            }
+            lastLife[i] = p.life;
+            trailWidths[i] = Math.max(trailWidths[i], p.size);
+
+            // The newest point always follows the particle
+            recordPoint(i, heads[i], p, side);
+        }
+    }
+
+    @Override
+    public void updateParticleData(Camera cam, ParticleController controller) {
+        if (cam != null) {
+            facing.set(cam.getDirection());
+        }
+
+        // The points were recorded as the particles were updated, so only the
+        // ones that changed since the last fill are copied into the buffers, with
+        // one bulk put for each run of neighbouring points
+        if (changedCount > 0) {
+            VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
+            FloatBuffer positions = (FloatBuffer) pvb.getData();
+
+            VertexBuffer cvb = getBuffer(VertexBuffer.Type.Color);
+            ByteBuffer colorBytes = (ByteBuffer) cvb.getData();
+            IntBuffer colorInts = colorsChanged ? getColorInts(colorBytes) : null;
+
+            Arrays.sort(changedPoints, 0, changedCount);
+            int c = 0;
+            while (c < changedCount) {
+                int start = changedPoints[c];
+                int end = start + 1;
+                pointChanged[start] = false;
+                for (c++; c < changedCount && changedPoints[c] == end; c++) {
+                    pointChanged[end++] = false;
+                }
+
+                positions.position(start * 6);
+                positions.put(vertices, start * 6, (end - start) * 6);
+                if (colorInts != null) {
+                    colorInts.position(start * 2);
+                    colorInts.put(vertexColors, start * 2, (end - start) * 2);
+                }
+            }
+            changedCount = 0;
+
+            // force renderer to re-send data to GPU
+            positions.clear();
+            pvb.updateData(positions);
+            if (colorInts != null) {
+                colorBytes.clear();
+                cvb.updateData(colorBytes);
+                colorsChanged = false;
+            }
+        }
+
+        if (indexesChanged) {
+            Buffer ib = indexes.getBuffer();
+            ib.clear();
+            getBuffer(VertexBuffer.Type.Index).updateData(ib);
+            indexesChanged = false;
+        }
+    }
+
+    /**
+     * The squared distance between the centre of the given point and the one
+     * before it.
+     */
+    private float centreDistanceSquared(int particle, int slot) {
+        int base = particle * trailLength;
+        int pos = (base + slot) * 6;
+        int previous = (base + (slot + trailLength - 1) % trailLength) * 6;
+        float x = (vertices[previous] + vertices[previous + 3] - vertices[pos] - vertices[pos + 3]) * 0.5f;
+        float y = (vertices[previous + 1] + vertices[previous + 4] - vertices[pos + 1] - vertices[pos + 4]) * 0.5f;
+        float z = (vertices[previous + 2] + vertices[previous + 5] - vertices[pos + 2] - vertices[pos + 5]) * 0.5f;
+        return x * x + y * y + z * z;
+    }
+
+    private float distanceSquared(int particle, int slot, Vector3f position) {
+        // The previous point is the centre of the one before the newest
+        int previous = ((particle * trailLength) + (slot + trailLength - 1) % trailLength) * 6;
+        float x = (vertices[previous] + vertices[previous + 3]) * 0.5f - position.x;
+        float y = (vertices[previous + 1] + vertices[previous + 4]) * 0.5f - position.y;
+        float z = (vertices[previous + 2] + vertices[previous + 5]) * 0.5f - position.z;
+        return x * x + y * y + z * z;
+    }
+
+    private void recordPoint(int particle, int slot, ParticleData p, Vector3f side) {
+        int point = particle * trailLength + slot;
+        int pos = point * 6;
+
+        vertices[pos] = p.position.x + side.x;
+        vertices[pos + 1] = p.position.y + side.y;
+        vertices[pos + 2] = p.position.z + side.z;
+        vertices[pos + 3] = p.position.x - side.x;
+        vertices[pos + 4] = p.position.y - side.y;
+        vertices[pos + 5] = p.position.z - side.z;
+        int abgr = p.color.asIntABGR();
+        if (vertexColors[point * 2] != abgr) {
+            vertexColors[point * 2] = abgr;
+            vertexColors[point * 2 + 1] = abgr;
+            colorsChanged = true;
+        }
+        markChanged(point);
+    }
+
+    private void markChanged(int point) {
+        if (!pointChanged[point]) {
+            pointChanged[point] = true;
+            changedPoints[changedCount++] = point;
+        }
+    }
+
+    /**
+     * Writes the two triangles joining the given point to the one before it.
+     */
+    private void putSegment(int particle, int slot) {
+        int base = particle * trailLength;
+        int vertex = (base + slot) * 2;
+        int previous = (base + (slot + trailLength - 1) % trailLength) * 2;
+        int index = (base + slot) * 6;
+
+        indexes.put(index, vertex);
+        indexes.put(index + 1, previous);
+        indexes.put(index + 2, vertex + 1);
+
+        indexes.put(index + 3, vertex + 1);
+        indexes.put(index + 4, previous);
+        indexes.put(index + 5, previous + 1);
+        indexesChanged = true;
+    }
+
+    private void putDegenerateSegment(int particle, int slot) {
+        int base = particle * trailLength;
+        int vertex = base * 2;
+        int index = (base + slot) * 6;
+        for (int i = 0; i < 6; i++) {
+            indexes.put(index + i, vertex);
+        }
+        indexesChanged = true;
+    }
+
+    private void clearTrail(int particle) {
+        for (int slot = 0; slot < trailLength; slot++) {
+            putDegenerateSegment(particle, slot);
+            segmentLengths[particle * trailLength + slot] = 0;
+        }
+        trailLengths[particle] = 0;
+        trailWidths[particle] = 0;
+    }
+
+    @Override
+    public void updateParticleBound(ParticleController controller) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+
+        // Every point of a trail lies within the length of its segments of the
+        // particle, so each trail is bounded by that distance plus its widest
+        // point without visiting the points themselves
+        ParticleData[] particles = controller.getParticles();
+        for (int i = 0; i < particles.length; i++) {
+            ParticleData p = particles[i];
+            if (!p.active) {
+                continue;
+            }
+
+            float extent = p.size;
+            if (wasActive[i]) {
+                extent = Math.max(extent, trailWidths[i]) + trailLengths[i]
+                        + FastMath.sqrt(centreDistanceSquared(i, heads[i]));
+            }
+            float x = p.position.x, y = p.position.y, z = p.position.z;
+            minX = Math.min(minX, x - extent);
+            minY = Math.min(minY, y - extent);
+            minZ = Math.min(minZ, z - extent);
+            maxX = Math.max(maxX, x + extent);
+            maxY = Math.max(maxY, y + extent);
+            maxZ = Math.max(maxZ, z + extent);
+        }
+
+        boundMin.set(minX, minY, minZ);
+        boundMax.set(maxX, maxY, maxZ);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.math.FastMath;
+
+/**
+ * The AliasTable selects an index at random with a chance in proportion to the
+ * weight given to each index, in constant time however many there are. It is built
+ * using Vose's alias method: each slot of the table is chosen with equal chance,
+ * then keeps its own index with the stored probability or otherwise switches to its
+ * alias.
+ * 
+ * Building the table costs O(n), so it suits weights that rarely change.
+ */
+public class AliasTable {
+
+    private final float[] probabilities;
+    private final int[] aliases;
+
+    /**
+     * Build a new alias table. If every weight is zero then all indices are
+     * selected with equal chance.
+     * 
+     * @param weights The weight of each index, which must not be negative
+     */
+    public AliasTable(float[] weights) {
+        int count = weights.length;
+        probabilities = new float[count];
+        aliases = new int[count];
+
+        double totalWeight = 0;
+        for (int i=0;i<count;i++) {
+            totalWeight += weights[i];
+        }
+        if (totalWeight <= 0) {
+            for (int i=0;i<count;i++) {
+                probabilities[i] = 1;
+                aliases[i] = i;
+            }
+            return;
+        }
+
+        // Scale the weights so the average is 1, then sort the slots into those
+        // below and above the average
+        double[] scaled = new double[count];
+        int[] small = new int[count];
+        int[] large = new int[count];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i=0;i<count;i++) {
+            scaled[i] = weights[i] * count / totalWeight;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        // Fill each small slot up to the average from a large one
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probabilities[less] = (float) scaled[less];
+            aliases[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // Whatever is left is at the average, give or take rounding errors
+        while (largeCount > 0) {
+            int more = large[--largeCount];
+            probabilities[more] = 1;
+            aliases[more] = more;
+        }
+        while (smallCount > 0) {
+            int less = small[--smallCount];
+            probabilities[less] = 1;
+            aliases[less] = less;
+        }
+    }
+
+    /**
+     * @return The number of indices in the table
+     */
+    public int size() {
+        return probabilities.length;
+    }
+
+    /**
+     * @return A random index, chosen with a chance in proportion to its weight
+     */
+    public int select() {
+        // Pick a slot, then use a separate random number to choose between its
+        // index and the alias, as the fraction left of a single float scaled by
+        // a large table has too few bits to hit small probabilities fairly
+        int index = FastMath.nextRandomInt(0, probabilities.length - 1);
+        if (FastMath.nextRandomFloat() >= probabilities[index]) {
+            index = aliases[index];
+        }
+        return index;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleSource;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.control.AbstractControl;
+import com.jme3.scene.control.Control;
+import java.io.IOException;
+
+/**
+ * Generates particles from the surface of an animated mesh, such as a character
+ * deformed by a SkeletonControl. Like WeightedMeshSource a triangle is selected
+ * with a chance in proportion to its area, then a random point within that triangle,
+ * and the particle is given a velocity equal to the normal of that face, rotated
+ * into the space of the particles.
+ * 
+ * The AnimatedMeshSource is a Control and must be added to the geometry it emits
+ * from, after any controls that animate it:
+ * 
+ * <pre>
+ * AnimatedMeshSource source = new AnimatedMeshSource();
+ * characterGeometry.addControl(source);
+ * ParticleController pCtrl = new ParticleController("Aura", mesh, 1000, 1, 2, source, emission);
+ * </pre>
+ * 
+ * It reads the vertex positions the mesh holds, so the skinning must be done in
+ * software for the particles to follow the animation. Once per update interval it
+ * checks which vertices have moved and reads again only the triangles using them,
+ * updating their areas in a sum tree so that selecting a triangle stays O(log n)
+ * without rebuilding the weights for the whole mesh. The surface is only refreshed
+ * when particles are emitted, so an idle source costs nothing.
+ */
+public class AnimatedMeshSource extends AbstractControl implements BatchParticleSource {
+
+    private float updateInterval = 0;
+    private float timeSinceRefresh = 0;
+    private boolean refreshNeeded = true;
+
+    private TriangleCache triangles;
+    // The area of each triangle, and a Fenwick tree of those areas so that each can
+    // be changed and the triangles selected from them in O(log n)
+    private float[] areas;
+    private double[] areaTree;
+    private double totalArea;
+    private int treeStep;
+
+    private final Vector3f origin = new Vector3f();
+    private final SourceTransform transform = new SourceTransform();
+
+    /**
+     * Construct a new AnimatedMeshSource that refreshes the surface every frame.
+     * Add it to the geometry to emit from.
+     */
+    public AnimatedMeshSource() {
+    }
+
+    /**
+     * Construct a new AnimatedMeshSource. Add it to the geometry to emit from.
+     * 
+     * @param updateInterval The time in seconds between refreshes of the surface
+     */
+    public AnimatedMeshSource(float updateInterval) {
+        this.updateInterval = updateInterval;
+    }
+
+    /**
+     * @return The time in seconds between refreshes of the surface
+     */
+    public float getUpdateInterval() {
+        return updateInterval;
+    }
+
+    /**
+     * Set how often the surface is refreshed from the mesh. With an interval of zero
+     * it is refreshed every frame in which particles are emitted. Longer intervals
+     * are cheaper but the particles will lag behind the animation.
+     * 
+     * @param updateInterval The time in seconds between refreshes of the surface
+     */
+    public void setUpdateInterval(float updateInterval) {
+        this.updateInterval = updateInterval;
+    }
+
+    /**
+     * Refresh the surface from the mesh the next time particles are emitted, whether
+     * or not the update interval has passed.
+     */
+    public void refresh() {
+        refreshNeeded = true;
+    }
+
+    @Override
+    public void setSpatial(Spatial spatial) {
+        if (spatial != null && !(spatial instanceof Geometry)) {
+            throw new IllegalArgumentException("AnimatedMeshSource can only be added to a Geometry");
+        }
+        super.setSpatial(spatial);
+        triangles = null;
+        refreshNeeded = true;
+    }
+
+    @Override
+    protected void controlUpdate(float tpf) {
+        timeSinceRefresh += tpf;
+        if (timeSinceRefresh >= updateInterval) {
+            timeSinceRefresh = 0;
+            refreshNeeded = true;
+        }
+    }
+
+    @Override
+    protected void controlRender(RenderManager rm, ViewPort vp) {
+    }
+
+    @Override
+    public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
+        prepare(pCtrl);
+        place(particle);
+    }
+
+    @Override
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count) {
+        prepare(pCtrl);
+        ParticleData[] particles = pCtrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            place(particles[indices[i]]);
+        }
+    }
+
+    private void prepare(ParticleController pCtrl) {
+        if (spatial == null) {
+            throw new IllegalStateException("AnimatedMeshSource must be added to the Geometry to emit from");
+        }
+        Geometry geometry = (Geometry) spatial;
+        if (triangles == null || triangles.getMesh() != geometry.getMesh()) {
+            triangles = new TriangleCache(geometry.getMesh());
+            buildAreas();
+            refreshNeeded = false;
+        } else if (refreshNeeded) {
+            int moved = triangles.updateMoved();
+            if (triangles.getTriangleCount() != areas.length) {
+                buildAreas();
+            } else {
+                int[] movedTriangles = triangles.getMovedTriangles();
+                for (int i = 0; i < moved; i++) {
+                    updateArea(movedTriangles[i]);
+                }
+            }
+            refreshNeeded = false;
+        }
+        transform.update(geometry.getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+    }
+
+    private void buildAreas() {
+        int count = triangles.getTriangleCount();
+        areas = new float[count];
+        areaTree = new double[count + 1];
+        totalArea = 0;
+        for (int i = 0; i < count; i++) {
+            areas[i] = triangles.getDoubleArea(i);
+            totalArea += areas[i];
+            // Build the tree in O(n) by adding each node into its parent
+            int node = i + 1;
+            areaTree[node] += areas[i];
+            int parent = node + (node & -node);
+            if (parent <= count) {
+                areaTree[parent] += areaTree[node];
+            }
+        }
+        treeStep = count == 0 ? 0 : Integer.highestOneBit(count);
+    }
+
+    private void updateArea(int triangle) {
+        float area = triangles.getDoubleArea(triangle);
+        double change = area - areas[triangle];
+        if (change != 0) {
+            areas[triangle] = area;
+            totalArea += change;
+            for (int node = triangle + 1; node < areaTree.length; node += node & -node) {
+                areaTree[node] += change;
+            }
+        }
+    }
+
+    private int selectTriangle() {
+        int count = areas.length;
+        if (totalArea <= 0) {
+            // Every triangle is degenerate, so just pick between them evenly
+            return FastMath.nextRandomInt(0, count - 1);
+        }
+
+        // Find the triangle whose share of the total area contains the selector
+        double remaining = FastMath.nextRandomFloat() * totalArea;
+        int position = 0;
+        for (int step = treeStep; step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= count && areaTree[next] <= remaining) {
+                position = next;
+                remaining -= areaTree[next];
+            }
+        }
+        return position < count ? position : count - 1;
+    }
+
+    private void place(ParticleData particle) {
+        int triangleIndex = selectTriangle();
+
+        triangles.getNormal(triangleIndex, particle.velocity);
+        transform.rotateDirection(particle.velocity, particle.velocity);
+        triangles.getRandomPoint(triangleIndex, origin);
+        transform.transformPosition(origin, particle.position);
+    }
+
+    /**
+     * Returns this source, as the surface it tracks belongs to the geometry rather
+     * than to the controller, so can be shared.
+     */
+    @Override
+    public ParticleSource cloneForController(ParticleController controller) {
+        return this;
+    }
+
+    @Override
+    public Control cloneForSpatial(Spatial spatial) {
+        AnimatedMeshSource clone = new AnimatedMeshSource(updateInterval);
+        clone.setSpatial(spatial);
+        return clone;
+    }
+
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        super.write(ex);
+        OutputCapsule capsule = ex.getCapsule(this);
+        capsule.write(updateInterval, "updateInterval", 0);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        super.read(im);
+        InputCapsule capsule = im.getCapsule(this);
+        updateInterval = capsule.readFloat("updateInterval", 0);
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleSource;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.texture.Image;
+import com.jme3.texture.image.ImageRaster;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Generates particles from the bright pixels of an image, for example to have a logo
+ * or a pattern of flames appear in particles. A pixel is selected with a chance in
+ * proportion to its intensity, which is its luminance multiplied by its alpha, and
+ * the particle starts from a random point within that pixel.
+ * 
+ * The image can either be laid out on a flat rectangle in the XY plane of the
+ * particles' own space, centred on the origin, or wrapped over a geometry using the
+ * texture coordinates of its mesh. On a rectangle the particles are given a velocity
+ * of +Z, on a geometry the normal of the face they start from rotated into the space
+ * of the particles.
+ * 
+ * The image is scanned once when this is constructed, after which each particle is
+ * selected in constant time. When wrapped over a geometry each pixel is also
+ * weighted by how much of the surface it covers, so a texture stretched over a large
+ * face emits as densely as one packed onto a small face. Texture coordinates outside
+ * 0 to 1 repeat the image, as a texture with the Repeat wrap mode would. Where the
+ * texture coordinates overlap the pixel is used for the first triangle found, and a
+ * triangle too small to cover the centre of any pixel takes the pixel it lies in.
+ */
+public class ImageSource implements BatchParticleSource {
+
+    private Image image;
+    private float width;
+    private float height;
+    private Geometry geometry;
+
+    // The pixel each entry of the alias table refers to. On a geometry also the
+    // triangle that pixel is mapped onto, where the pixel lies in texture space
+    // before the image is repeated, and whether the triangle is too small to cover
+    // the centre of any pixel.
+    private int[] pixels;
+    private int[] pixelTriangles;
+    private int[] pixelCells;
+    private boolean[] pixelSmall;
+    private AliasTable weights;
+
+    private TriangleCache triangles;
+    // Six floats for the texture coordinates of each triangle, in pixels
+    private float[] triangleUVs;
+    private final SourceTransform transform = new SourceTransform();
+
+    private final Vector3f corner = new Vector3f();
+
+    /**
+     * Construct a new ImageSource that lays the image out on a rectangle.
+     * 
+     * @param image The image to emit from
+     * @param width The width of the rectangle
+     * @param height The height of the rectangle
+     */
+    public ImageSource(Image image, float width, float height) {
+        this.image = image;
+        this.width = width;
+        this.height = height;
+        buildWeights();
+    }
+
+    /**
+     * Construct a new ImageSource that wraps the image over a geometry using the
+     * texture coordinates of its mesh.
+     * 
+     * @param image The image to emit from
+     * @param geometry The geometry to emit from, its mesh must have texture coordinates
+     */
+    public ImageSource(Image image, Geometry geometry) {
+        this.image = image;
+        this.geometry = geometry;
+        buildWeights();
+    }
+
+    /**
+     * Scan the image, and the geometry if there is one, again. This should be called
+     * if the contents of the image change, or the shape of the geometry changes
+     * significantly.
+     */
+    public final void buildWeights() {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        float[] intensities = new float[imageWidth * imageHeight];
+
+        ImageRaster raster = ImageRaster.create(image);
+        ColorRGBA color = new ColorRGBA();
+        for (int y = 0; y < imageHeight; y++) {
+            for (int x = 0; x < imageWidth; x++) {
+                raster.getPixel(x, y, color);
+                float luminance = 0.2126f * color.r + 0.7152f * color.g + 0.0722f * color.b;
+                intensities[y * imageWidth + x] = Math.max(0, luminance * color.a);
+            }
+        }
+
+        int[] pixelTriangle = null;
+        int[] pixelCell = null;
+        boolean[] pixelSmallTriangle = null;
+        if (geometry != null) {
+            pixelTriangle = new int[intensities.length];
+            pixelCell = new int[intensities.length * 2];
+            pixelSmallTriangle = new boolean[intensities.length];
+            mapPixelsToTriangles(intensities, pixelTriangle, pixelCell, pixelSmallTriangle);
+        }
+
+        // Only the pixels that can emit go into the table
+        int count = 0;
+        for (int i = 0; i < intensities.length; i++) {
+            if (intensities[i] > 0) {
+                count++;
+            }
+        }
+        pixels = new int[count];
+        pixelTriangles = geometry == null ? null : new int[count];
+        pixelCells = geometry == null ? null : new int[count * 2];
+        pixelSmall = geometry == null ? null : new boolean[count];
+        float[] pixelWeights = new float[count];
+        count = 0;
+        for (int i = 0; i < intensities.length; i++) {
+            if (intensities[i] > 0) {
+                pixels[count] = i;
+                if (pixelTriangles != null) {
+                    pixelTriangles[count] = pixelTriangle[i];
+                    pixelCells[count * 2] = pixelCell[i * 2];
+                    pixelCells[count * 2 + 1] = pixelCell[i * 2 + 1];
+                    pixelSmall[count] = pixelSmallTriangle[i];
+                }
+                pixelWeights[count++] = intensities[i];
+            }
+        }
+        weights = new AliasTable(pixelWeights);
+    }
+
+    /**
+     * Find the triangle each pixel is mapped onto by rasterizing the triangles in
+     * texture space, repeating the image outside 0 to 1. The intensity of each pixel
+     * is scaled by the area of surface it covers, and pixels that are not on any
+     * triangle are given no intensity.
+     */
+    private void mapPixelsToTriangles(float[] intensities, int[] pixelTriangle, int[] pixelCell, boolean[] pixelSmallTriangle) {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        Mesh mesh = geometry.getMesh();
+
+        VertexBuffer texCoords = mesh.getBuffer(VertexBuffer.Type.TexCoord);
+        if (texCoords == null) {
+            throw new IllegalArgumentException("The mesh of " + geometry.getName() + " has no texture coordinates");
+        }
+        FloatBuffer uvs = (FloatBuffer) texCoords.getData();
+        IndexBuffer indexes = mesh.getIndicesAsList();
+
+        triangles = new TriangleCache(mesh);
+        int triangleCount = triangles.getTriangleCount();
+        triangleUVs = new float[triangleCount * 6];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            int index = indexes.get(i) * 2;
+            triangleUVs[i * 2] = uvs.get(index) * imageWidth;
+            triangleUVs[i * 2 + 1] = uvs.get(index + 1) * imageHeight;
+        }
+
+        float[] pixelDensity = new float[intensities.length];
+        for (int i = 0; i < pixelTriangle.length; i++) {
+            pixelTriangle[i] = -1;
+        }
+
+        for (int t = 0; t < triangleCount; t++) {
+            int uv = t * 6;
+            float ax = triangleUVs[uv];
+            float ay = triangleUVs[uv + 1];
+            float bx = triangleUVs[uv + 2] - ax;
+            float by = triangleUVs[uv + 3] - ay;
+            float cx = triangleUVs[uv + 4] - ax;
+            float cy = triangleUVs[uv + 5] - ay;
+            float uvArea = bx * cy - by * cx;
+            if (uvArea == 0) {
+                continue;
+            }
+            // The surface area covered by each pixel of this triangle
+            float density = triangles.getDoubleArea(t) / Math.abs(uvArea);
+
+            // The cells are pixels of the repeated image, so may lie outside it
+            int minX = (int) FastMath.floor(Math.min(ax, Math.min(ax + bx, ax + cx)));
+            int maxX = (int) FastMath.ceil(Math.max(ax, Math.max(ax + bx, ax + cx)));
+            int minY = (int) FastMath.floor(Math.min(ay, Math.min(ay + by, ay + cy)));
+            int maxY = (int) FastMath.ceil(Math.max(ay, Math.max(ay + by, ay + cy)));
+            boolean covered = false;
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    // Test the centre of the pixel against the triangle
+                    float px = x + 0.5f - ax;
+                    float py = y + 0.5f - ay;
+                    float s = (px * cy - py * cx) / uvArea;
+                    float r = (bx * py - by * px) / uvArea;
+                    if (s >= 0 && r >= 0 && s + r <= 1) {
+                        covered = true;
+                        int pixel = wrap(y, imageHeight) * imageWidth + wrap(x, imageWidth);
+                        if (pixelTriangle[pixel] == -1) {
+                            pixelTriangle[pixel] = t;
+                            pixelCell[pixel * 2] = x;
+                            pixelCell[pixel * 2 + 1] = y;
+                            pixelDensity[pixel] = density;
+                        }
+                    }
+                }
+            }
+
+            if (!covered) {
+                // The triangle is too small to cover the centre of any pixel, so it
+                // takes the pixel its own centre lies in with the whole of its area
+                int x = (int) FastMath.floor(ax + (bx + cx) / 3);
+                int y = (int) FastMath.floor(ay + (by + cy) / 3);
+                int pixel = wrap(y, imageHeight) * imageWidth + wrap(x, imageWidth);
+                if (pixelTriangle[pixel] == -1) {
+                    pixelTriangle[pixel] = t;
+                    pixelCell[pixel * 2] = x;
+                    pixelCell[pixel * 2 + 1] = y;
+                    pixelSmallTriangle[pixel] = true;
+                    pixelDensity[pixel] = triangles.getDoubleArea(t) * 0.5f;
+                }
+            }
+        }
+
+        for (int i = 0; i < intensities.length; i++) {
+            intensities[i] *= pixelDensity[i];
+        }
+    }
+
+    private static int wrap(int coordinate, int size) {
+        int wrapped = coordinate % size;
+        return wrapped < 0 ? wrapped + size : wrapped;
+    }
+
+    @Override
+    public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
+        prepare(pCtrl);
+        place(particle);
+    }
+
+    @Override
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count) {
+        prepare(pCtrl);
+        ParticleData[] particles = pCtrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            place(particles[indices[i]]);
+        }
+    }
+
+    private void prepare(ParticleController pCtrl) {
+        if (geometry != null) {
+            transform.update(geometry.getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+        }
+    }
+
+    private void place(ParticleData particle) {
+        if (weights.size() == 0) {
+            // The image is entirely dark, so there is nowhere to emit from
+            particle.position.set(Vector3f.ZERO);
+            particle.velocity.set(Vector3f.ZERO);
+            return;
+        }
+
+        int entry = weights.select();
+
+        if (geometry == null) {
+            int pixel = pixels[entry];
+            int imageWidth = image.getWidth();
+            float x = pixel % imageWidth + FastMath.nextRandomFloat();
+            float y = pixel / imageWidth + FastMath.nextRandomFloat();
+            particle.position.set(
+                    (x / imageWidth - 0.5f) * width,
+                    (y / image.getHeight() - 0.5f) * height,
+                    0);
+            particle.velocity.set(Vector3f.UNIT_Z);
+            return;
+        }
+
+        int t = pixelTriangles[entry];
+        triangles.getNormal(t, particle.velocity);
+        transform.rotateDirection(particle.velocity, particle.velocity);
+
+        if (pixelSmall[entry]) {
+            // The triangle lies within the pixel, so any point of it will do
+            triangles.getRandomPoint(t, particle.position);
+            transform.transformPosition(particle.position, particle.position);
+            return;
+        }
+
+        // Find where the point lies within the triangle in texture space, and so where
+        // it lies on the surface. The point may be just outside the triangle at its
+        // edges so is clamped back within it.
+        float x = pixelCells[entry * 2] + FastMath.nextRandomFloat();
+        float y = pixelCells[entry * 2 + 1] + FastMath.nextRandomFloat();
+        int uv = t * 6;
+        float ax = triangleUVs[uv];
+        float ay = triangleUVs[uv + 1];
+        float bx = triangleUVs[uv + 2] - ax;
+        float by = triangleUVs[uv + 3] - ay;
+        float cx = triangleUVs[uv + 4] - ax;
+        float cy = triangleUVs[uv + 5] - ay;
+        float uvArea = bx * cy - by * cx;
+        float px = x - ax;
+        float py = y - ay;
+        float s = Math.max(0, (px * cy - py * cx) / uvArea);
+        float r = Math.max(0, (bx * py - by * px) / uvArea);
+        if (s + r > 1) {
+            float total = s + r;
+            s /= total;
+            r /= total;
+        }
+
+        triangles.getVertex(t, 0, particle.position);
+        particle.position.multLocal(1 - s - r);
+        particle.position.addLocal(triangles.getVertex(t, 1, corner).multLocal(s));
+        particle.position.addLocal(triangles.getVertex(t, 2, corner).multLocal(r));
+        transform.transformPosition(particle.position, particle.position);
+    }
+
+    @Override
+    public ParticleSource cloneForController(ParticleController ctrlr) {
+        if (geometry == null) {
+            return new ImageSource(image, width, height);
+        }
+        return new ImageSource(image, geometry);
+    }
+
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule capsule = ex.getCapsule(this);
+        capsule.write(image, "image", null);
+        capsule.write(width, "width", 1);
+        capsule.write(height, "height", 1);
+        capsule.write(geometry, "geometry", null);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule capsule = im.getCapsule(this);
+        image = (Image) capsule.readSavable("image", null);
+        width = capsule.readFloat("width", 1);
+        height = capsule.readFloat("height", 1);
+        geometry = (Geometry) capsule.readSavable("geometry", null);
+        buildWeights();
+    }
+}
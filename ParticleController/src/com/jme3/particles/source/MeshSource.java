@@ -34,8 +34,8 @@ package com.jme3.particles.source;
 import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.math.FastMath;
-import com.jme3.math.Triangle;
 import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleSource;
@@ -45,17 +45,20 @@ import java.io.IOException;
 /**
  * Generates particles from the supplied mesh. A triangle is selected at random
  * and then a random point within that triangle. The particle is then generated
- * with velocity equal to the normal of that face. Note that the normal just
- * looks at the triangle and does not use any information that might be in
- * vertex buffers or normal maps.
+ * with velocity equal to the normal of that face, rotated into the space of the
+ * particles. Note that the normal just looks at the triangle and does not use any
+ * information that might be in vertex buffers or normal maps.
+ * 
+ * The triangles are read from the mesh when this is constructed and cached. If the
+ * mesh changes shape then call updateTriangles() to read them again. The cache is
+ * rebuilt automatically if the geometry is given a different mesh.
  */
-public class MeshSource implements ParticleSource {
+public class MeshSource implements BatchParticleSource {
 
     private Geometry geometry;
-    private final Triangle triStore = new Triangle();
+    private TriangleCache triangles;
     private final Vector3f origin = new Vector3f();
-    private final Vector3f side1 = new Vector3f();
-    private final Vector3f side2 = new Vector3f();
+    private final SourceTransform transform = new SourceTransform();
 
     /**
      * Generate a new MeshSource for the supplied geometry.
@@ -64,35 +67,50 @@ public class MeshSource implements ParticleSource {
      */
     public MeshSource(Geometry geometry) {
         this.geometry = geometry;
+        triangles = new TriangleCache(geometry.getMesh());
+    }
+
+    /**
+     * Read the triangles from the mesh again. This should be called whenever the
+     * shape of the mesh changes.
+     */
+    public void updateTriangles() {
+        if (triangles.getMesh() == geometry.getMesh()) {
+            triangles.update();
+        } else {
+            triangles = new TriangleCache(geometry.getMesh());
+        }
     }
 
     @Override
     public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
-        
-        int triangleIndex = FastMath.nextRandomInt(0, geometry.getMesh().getTriangleCount()-1);
-        geometry.getMesh().getTriangle(triangleIndex, triStore);
-        
-        particle.velocity.set(triStore.getNormal());
-        
-        origin.set(triStore.get1());
-        side1.set(triStore.get2()).subtractLocal(origin);
-        side2.set(triStore.get3()).subtractLocal(origin);
-        
-        float d1 = FastMath.nextRandomFloat();
-        float d2 = FastMath.nextRandomFloat();
-        
-        if (d1 + d2 > 1) {
-            d1 = 1-d1;
-            d2 = 1-d2;
+        prepare(pCtrl);
+        place(particle);
+    }
+
+    @Override
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count) {
+        prepare(pCtrl);
+        ParticleData[] particles = pCtrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            place(particles[indices[i]]);
         }
+    }
+
+    private void prepare(ParticleController pCtrl) {
+        if (triangles.getMesh() != geometry.getMesh()) {
+            triangles = new TriangleCache(geometry.getMesh());
+        }
+        transform.update(geometry.getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+    }
+
+    private void place(ParticleData particle) {
+        int triangleIndex = FastMath.nextRandomInt(0, triangles.getTriangleCount()-1);
         
-        side1.multLocal(d1);
-        side2.multLocal(d2);
-        
-        origin.addLocal(side1).addLocal(side2);
-        
-        geometry.getWorldTransform().transformVector(origin, origin);
-        pCtrl.getGeometry().getWorldTransform().transformInverseVector(origin, particle.position);
+        triangles.getNormal(triangleIndex, particle.velocity);
+        transform.rotateDirection(particle.velocity, particle.velocity);
+        triangles.getRandomPoint(triangleIndex, origin);
+        transform.transformPosition(origin, particle.position);
     }
 
     @Override
@@ -108,6 +126,7 @@ public class MeshSource implements ParticleSource {
     @Override
     public void read(JmeImporter im) throws IOException {
         geometry = (Geometry) im.getCapsule(this).readSavable("geometry", null);
+        triangles = new TriangleCache(geometry.getMesh());
     }
     
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleSource;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.SceneGraphVisitorAdapter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates particles from all of the geometries below a node, as if they were one
+ * mesh. This lets a single ParticleController cover a model built from many
+ * geometries.
+ * 
+ * As with WeightedMeshSource a triangle is selected with a chance in proportion to
+ * its area, so particles are spread evenly over the whole model, then a random point
+ * within that triangle. The areas are measured in the node's space so geometries
+ * scaled differently are still weighted correctly. The particle is given a velocity
+ * equal to the normal of that face, rotated into the space of the particles.
+ * 
+ * The geometries, their triangles and sizes are scanned and cached both when this
+ * is constructed and when the method recalculateWeights is called. They are not
+ * updated otherwise, so recalculateWeights must be called if geometries are added or
+ * removed or change shape. Geometries may move freely though.
+ */
+public class NodeMeshSource implements BatchParticleSource {
+
+    private Node node;
+    private Geometry[] geometries;
+    private TriangleCache[] triangles;
+    private SourceTransform[] transforms;
+    // The geometry each triangle belongs to, and the index of the first triangle of
+    // each geometry, so that a triangle of the whole node can be found in its cache
+    private int[] triangleGeometry;
+    private int[] firstTriangle;
+    private AliasTable weights;
+
+    private final Vector3f origin = new Vector3f();
+    private final Vector3f nodePosition = new Vector3f();
+    private final Vector3f corner1 = new Vector3f();
+    private final Vector3f corner2 = new Vector3f();
+    private final Vector3f corner3 = new Vector3f();
+
+    /**
+     * Generate a new mesh source for the geometries below the supplied node.
+     * 
+     * @param node The node to emit particles from
+     */
+    public NodeMeshSource(Node node) {
+        this.node = node;
+        recalculateWeights();
+    }
+
+    /**
+     * @return The node particles are emitted from
+     */
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Scan the geometries below the node again and recalculate the weights given to
+     * each triangle. This should be called whenever geometries are added or removed
+     * or the shape of their triangles changes significantly.
+     */
+    public final void recalculateWeights() {
+        final List<Geometry> found = new ArrayList<Geometry>();
+        node.depthFirstTraversal(new SceneGraphVisitorAdapter() {
+            @Override
+            public void visit(Geometry geom) {
+                if (geom.getMesh() != null && geom.getMesh().getTriangleCount() > 0) {
+                    found.add(geom);
+                }
+            }
+        });
+
+        geometries = found.toArray(new Geometry[found.size()]);
+        triangles = new TriangleCache[geometries.length];
+        transforms = new SourceTransform[geometries.length];
+        firstTriangle = new int[geometries.length];
+
+        int total = 0;
+        for (int g = 0; g < geometries.length; g++) {
+            triangles[g] = new TriangleCache(geometries[g].getMesh());
+            transforms[g] = new SourceTransform();
+            firstTriangle[g] = total;
+            total += triangles[g].getTriangleCount();
+        }
+
+        triangleGeometry = new int[total];
+        float[] areas = new float[total];
+        SourceTransform toNode = new SourceTransform();
+        for (int g = 0; g < geometries.length; g++) {
+            TriangleCache cache = triangles[g];
+            toNode.update(geometries[g].getWorldTransform(), node.getWorldTransform());
+            for (int i = 0; i < cache.getTriangleCount(); i++) {
+                int index = firstTriangle[g] + i;
+                triangleGeometry[index] = g;
+
+                // Measure the triangle in the node's space, this is double the area
+                // but since we are looking at proportional difference the *2 cancels out
+                toNode.transformPosition(cache.getVertex(i, 0, corner1), corner1);
+                toNode.transformPosition(cache.getVertex(i, 1, corner2), corner2);
+                toNode.transformPosition(cache.getVertex(i, 2, corner3), corner3);
+                corner2.subtractLocal(corner1);
+                corner3.subtractLocal(corner1);
+                areas[index] = corner2.crossLocal(corner3).length();
+            }
+        }
+
+        weights = new AliasTable(areas);
+    }
+
+    @Override
+    public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
+        updateTransforms(pCtrl);
+        place(particle);
+    }
+
+    @Override
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count) {
+        updateTransforms(pCtrl);
+        ParticleData[] particles = pCtrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            place(particles[indices[i]]);
+        }
+    }
+
+    private void updateTransforms(ParticleController pCtrl) {
+        if (weights.size() == 0) {
+            pCtrl.getGeometry().getWorldTransform().transformInverseVector(node.getWorldTranslation(), nodePosition);
+        }
+        for (int g = 0; g < geometries.length; g++) {
+            transforms[g].update(geometries[g].getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+        }
+    }
+
+    private void place(ParticleData particle) {
+        if (weights.size() == 0) {
+            // There is nothing to emit from, so start at the node
+            particle.velocity.set(Vector3f.ZERO);
+            particle.position.set(nodePosition);
+            return;
+        }
+
+        int index = weights.select();
+        int g = triangleGeometry[index];
+        int triangleIndex = index - firstTriangle[g];
+
+        triangles[g].getNormal(triangleIndex, particle.velocity);
+        transforms[g].rotateDirection(particle.velocity, particle.velocity);
+        triangles[g].getRandomPoint(triangleIndex, origin);
+        transforms[g].transformPosition(origin, particle.position);
+    }
+
+    @Override
+    public ParticleSource cloneForController(ParticleController ctrlr) {
+        return new NodeMeshSource(node);
+    }
+
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        ex.getCapsule(this).write(node, "node", null);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        node = (Node) im.getCapsule(this).readSavable("node", null);
+        recalculateWeights();
+    }
+}
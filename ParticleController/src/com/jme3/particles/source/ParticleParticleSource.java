@@ -35,20 +35,25 @@ import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
-import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleSource;
 import java.io.IOException;
 
 /**
+ * Generates particles from the particles of another ParticleController. An active
+ * particle of that controller is picked at random and the new particle starts with
+ * its position and velocity. If the other controller has no active particles then
+ * the new particle starts at the origin of that controller's geometry, at rest.
  *
  * @author Tim
  */
-public class ParticleParticleSource implements ParticleSource {
+public class ParticleParticleSource implements BatchParticleSource {
 
     ParticleController source;
-    private static final Quaternion working = new Quaternion();
+    private final SourceTransform transform = new SourceTransform();
 
     public ParticleParticleSource(ParticleController source) {
         this.source = source;
@@ -56,38 +61,40 @@ public class ParticleParticleSource implements ParticleSource {
     
     @Override
     public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
-        ParticleData[] particles = source.getParticles();
+        transform.update(source.getGeometry().getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+        place(particle);
+    }
 
-        int count = 0;
-        for (int i=0;i<particles.length;i++) {
-            if (particles[i].active)
-                count++;
+    @Override
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count) {
+        transform.update(source.getGeometry().getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+        ParticleData[] particles = pCtrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            place(particles[indices[i]]);
         }
-        count = FastMath.nextRandomInt(0, count-1);
-        for (int i=0;i<count && i<particles.length;i++) {
-            if (!particles[i].active)
-                count++;
+    }
+
+    private void place(ParticleData particle) {
+        int count = source.getActiveIndexCount();
+        if (count == 0) {
+            particle.position.set(Vector3f.ZERO);
+            particle.velocity.set(Vector3f.ZERO);
+            particle.size = 1;
+            particle.rotationalVelocity.set(Vector3f.ZERO);
+            particle.rotation.set(Quaternion.IDENTITY);
+        } else {
+            ParticleData parent = source.getParticles()[source.getActiveIndices()[FastMath.nextRandomInt(0, count-1)]];
+            particle.position.set(parent.position);
+            particle.velocity.set(parent.velocity);
+            particle.size = parent.size;
+            particle.rotationalVelocity.set(parent.rotationalVelocity);
+            particle.rotation.set(parent.rotation);
         }
         
-        particle.position.set(particles[count].position);
-        particle.velocity.set(particles[count].velocity);
-        particle.size = particles[count].size;
-        particle.rotationalVelocity.set(particles[count].rotationalVelocity);
-        particle.rotation.set(particles[count].rotation);
-        
-        // First convert everything to world space
-        Transform t = source.getGeometry().getWorldTransform();
-        t.transformVector(particle.position, particle.position);
-        t.getRotation().mult(particle.velocity, particle.velocity);
-        particle.rotation.multLocal(t.getRotation());
-        
-        // Now convert everything to mesh space
-        t = pCtrl.getGeometry().getWorldTransform();
-        t.transformInverseVector(particle.position, particle.position);
-        working.set(t.getRotation());
-        working.inverseLocal();
-        working.mult(particle.velocity, particle.velocity);
-        particle.rotation.multLocal(working);
+        // Convert everything from the source's mesh space to this mesh space
+        transform.transformPosition(particle.position, particle.position);
+        transform.rotateDirection(particle.velocity, particle.velocity);
+        transform.rotateOrientation(particle.rotation);
     }
 
     @Override
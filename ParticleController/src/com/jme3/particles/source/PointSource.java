@@ -130,11 +130,13 @@ public class PointSource extends Spatial implements ParticleSource {
 
     @Override
     public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
-        particle.initialise(new Vector3f(
+        // Set the fields directly rather than going through initialise() so that no
+        // temporary vector is allocated for each particle
+        particle.velocity.set(
                 minInitialVelocity.x+FastMath.nextRandomFloat()*initialVelocityRange.x, 
                 minInitialVelocity.y+FastMath.nextRandomFloat()*initialVelocityRange.y, 
-                minInitialVelocity.z+FastMath.nextRandomFloat()*initialVelocityRange.z), 
-                getWorldTranslation());
+                minInitialVelocity.z+FastMath.nextRandomFloat()*initialVelocityRange.z);
+        particle.position.set(getWorldTranslation());
     }
 
     @Override
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.math.Matrix3f;
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+
+/**
+ * The SourceTransform converts from the local space of a particle source into the
+ * local space of the geometry the particles are displayed in. The two world
+ * transforms are combined into a single matrix, which is only recalculated when one
+ * of them changes, so each particle emitted needs one matrix multiply rather than
+ * a transform into world space and an inverse transform back out of it.
+ */
+public class SourceTransform {
+
+    private final Transform lastSource = new Transform();
+    private final Transform lastTarget = new Transform();
+    private boolean valid = false;
+
+    private final Matrix4f matrix = new Matrix4f();
+    private final Matrix4f targetMatrix = new Matrix4f();
+    private final Matrix3f rotationMatrix = new Matrix3f();
+    private final Quaternion rotation = new Quaternion();
+    private final Quaternion orientationRotation = new Quaternion();
+
+    /**
+     * Make sure the combined transform is up to date. This is cheap when neither
+     * transform has changed so can be called for every particle.
+     * 
+     * @param source The world transform of the source
+     * @param target The world transform of the geometry the particles are displayed in
+     */
+    public void update(Transform source, Transform target) {
+        if (valid && same(source, lastSource) && same(target, lastTarget)) {
+            return;
+        }
+        lastSource.set(source);
+        lastTarget.set(target);
+        valid = true;
+
+        source.getRotation().toRotationMatrix(rotationMatrix);
+        matrix.setTransform(source.getTranslation(), source.getScale(), rotationMatrix);
+
+        target.getRotation().toRotationMatrix(rotationMatrix);
+        targetMatrix.setTransform(target.getTranslation(), target.getScale(), rotationMatrix);
+        targetMatrix.invertLocal();
+
+        targetMatrix.mult(matrix, matrix);
+
+        rotation.set(target.getRotation()).inverseLocal().multLocal(source.getRotation());
+        orientationRotation.set(target.getRotation()).inverseLocal();
+        source.getRotation().mult(orientationRotation, orientationRotation);
+    }
+
+    /**
+     * Forget the cached transform so that it is recalculated on the next update.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Transform a position from the source space into the target space.
+     * 
+     * @param in The position to transform
+     * @param store The vector to store the result into, may be the same as in
+     * @return The store vector
+     */
+    public Vector3f transformPosition(Vector3f in, Vector3f store) {
+        return matrix.mult(in, store);
+    }
+
+    /**
+     * Rotate a direction from the source space into the target space. Only the
+     * rotations are applied, not the scales.
+     * 
+     * @param in The direction to rotate
+     * @param store The vector to store the result into, may be the same as in
+     * @return The store vector
+     */
+    public Vector3f rotateDirection(Vector3f in, Vector3f store) {
+        return rotation.mult(in, store);
+    }
+
+    /**
+     * Convert a particle rotation from the source space into the target space. The
+     * rotation is multiplied on the right by the source rotation and then by the
+     * inverse of the target rotation, the order particle rotations have always
+     * been converted in, which differs from rotating a direction.
+     * 
+     * @param rotation The particle rotation to convert in place
+     * @return The rotation
+     */
+    public Quaternion rotateOrientation(Quaternion rotation) {
+        return rotation.multLocal(orientationRotation);
+    }
+
+    /**
+     * @return The rotation from the source space into the target space. This must
+     * not be modified.
+     */
+    public Quaternion getRotation() {
+        return rotation;
+    }
+
+    private static boolean same(Transform a, Transform b) {
+        return a.getTranslation().equals(b.getTranslation())
+                && a.getRotation().equals(b.getRotation())
+                && a.getScale().equals(b.getScale());
+    }
+}
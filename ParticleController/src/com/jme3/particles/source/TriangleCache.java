@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * The TriangleCache holds the triangles of a mesh unpacked into flat arrays of
+ * vertex positions and face normals, so that the mesh sources can pick a point
+ * on a triangle with a few array reads rather than going through the index and
+ * position buffers and calculating the normal for every particle.
+ * 
+ * The cache is a copy of the mesh at the time it was last updated, so update()
+ * must be called when the mesh changes shape. For meshes that are deformed each
+ * frame, such as skinned meshes, updateMoved() only re-reads the triangles that
+ * have a vertex which has moved.
+ */
+public class TriangleCache {
+
+    private final Mesh mesh;
+    private int triangleCount;
+    // Nine floats for the three vertices of each triangle
+    private float[] vertices = new float[0];
+    // Three floats for the normal of each triangle
+    private float[] normals = new float[0];
+
+    // Used by updateMoved() and built the first time it is called. The vertex
+    // indices of each triangle, the triangles using each vertex (the triangles
+    // of vertex v are from vertexTriangleStart[v] to vertexTriangleStart[v+1]
+    // in vertexTriangles) and the vertex positions the cache was built from.
+    private int[] triangleVertices;
+    private int[] vertexTriangleStart;
+    private int[] vertexTriangles;
+    private float[] lastPositions;
+    private float[] currentPositions;
+    private int[] movedTriangles;
+    private int movedCount;
+    // The update in which each triangle was last found to have moved
+    private int[] movedStamps;
+    private int stamp;
+
+    /**
+     * Construct a new TriangleCache holding the current triangles of the mesh.
+     * 
+     * @param mesh The mesh to cache the triangles of
+     */
+    public TriangleCache(Mesh mesh) {
+        this.mesh = mesh;
+        update();
+    }
+
+    /**
+     * Read the triangles from the mesh again. This should be called whenever the
+     * shape of the mesh changes.
+     */
+    public final void update() {
+        FloatBuffer positions = (FloatBuffer) mesh.getBuffer(VertexBuffer.Type.Position).getData();
+        IndexBuffer indexes = mesh.getIndicesAsList();
+
+        // The triangles may have changed, so updateMoved() starts again from scratch
+        triangleVertices = null;
+        movedCount = 0;
+
+        triangleCount = indexes.size() / 3;
+        if (vertices.length != triangleCount * 9) {
+            vertices = new float[triangleCount * 9];
+            normals = new float[triangleCount * 3];
+        }
+
+        for (int i = 0; i < triangleCount; i++) {
+            int v = i * 9;
+            for (int corner = 0; corner < 3; corner++) {
+                int index = indexes.get(i * 3 + corner) * 3;
+                vertices[v + corner * 3] = positions.get(index);
+                vertices[v + corner * 3 + 1] = positions.get(index + 1);
+                vertices[v + corner * 3 + 2] = positions.get(index + 2);
+            }
+            updateNormal(i);
+        }
+    }
+
+    /**
+     * Read again only the triangles that use a vertex which has moved since the
+     * last update. The moved triangles can then be found with getMovedTriangles().
+     * 
+     * This compares every vertex position so still costs O(vertices), but avoids
+     * reading through the index buffer and recalculating the normals of the
+     * triangles that have not moved. The first call, and any call after the number
+     * of vertices changes, reads every triangle.
+     * 
+     * @return The number of triangles that moved
+     */
+    public int updateMoved() {
+        FloatBuffer positions = (FloatBuffer) mesh.getBuffer(VertexBuffer.Type.Position).getData();
+        if (triangleVertices == null || positions.limit() != lastPositions.length) {
+            update();
+            buildVertexTriangles(positions);
+            movedCount = triangleCount;
+            for (int i = 0; i < triangleCount; i++) {
+                movedTriangles[i] = i;
+            }
+            return movedCount;
+        }
+
+        FloatBuffer view = positions.duplicate();
+        view.clear();
+        view.get(currentPositions, 0, currentPositions.length);
+
+        stamp++;
+        if (stamp == Integer.MAX_VALUE) {
+            stamp = 1;
+            Arrays.fill(movedStamps, 0);
+        }
+
+        movedCount = 0;
+        for (int v = 0; v < currentPositions.length; v += 3) {
+            if (currentPositions[v] != lastPositions[v]
+                    || currentPositions[v + 1] != lastPositions[v + 1]
+                    || currentPositions[v + 2] != lastPositions[v + 2]) {
+                int vertex = v / 3;
+                for (int i = vertexTriangleStart[vertex]; i < vertexTriangleStart[vertex + 1]; i++) {
+                    int triangle = vertexTriangles[i];
+                    if (movedStamps[triangle] != stamp) {
+                        movedStamps[triangle] = stamp;
+                        movedTriangles[movedCount++] = triangle;
+                    }
+                }
+            }
+        }
+
+        // Swap so that the positions just read are the ones compared against next time
+        float[] swap = lastPositions;
+        lastPositions = currentPositions;
+        currentPositions = swap;
+
+        for (int i = 0; i < movedCount; i++) {
+            int triangle = movedTriangles[i];
+            int v = triangle * 9;
+            for (int corner = 0; corner < 3; corner++) {
+                int index = triangleVertices[triangle * 3 + corner] * 3;
+                vertices[v + corner * 3] = lastPositions[index];
+                vertices[v + corner * 3 + 1] = lastPositions[index + 1];
+                vertices[v + corner * 3 + 2] = lastPositions[index + 2];
+            }
+            updateNormal(triangle);
+        }
+        return movedCount;
+    }
+
+    /**
+     * Build the lookup from each vertex to the triangles that use it.
+     */
+    private void buildVertexTriangles(FloatBuffer positions) {
+        IndexBuffer indexes = mesh.getIndicesAsList();
+        int vertexCount = positions.limit() / 3;
+
+        triangleVertices = new int[triangleCount * 3];
+        vertexTriangleStart = new int[vertexCount + 1];
+        for (int i = 0; i < triangleVertices.length; i++) {
+            triangleVertices[i] = indexes.get(i);
+            vertexTriangleStart[triangleVertices[i] + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            vertexTriangleStart[v + 1] += vertexTriangleStart[v];
+        }
+
+        vertexTriangles = new int[triangleVertices.length];
+        int[] filled = new int[vertexCount];
+        for (int i = 0; i < triangleVertices.length; i++) {
+            int vertex = triangleVertices[i];
+            vertexTriangles[vertexTriangleStart[vertex] + filled[vertex]++] = i / 3;
+        }
+
+        lastPositions = new float[vertexCount * 3];
+        currentPositions = new float[vertexCount * 3];
+        FloatBuffer view = positions.duplicate();
+        view.clear();
+        view.get(lastPositions, 0, lastPositions.length);
+
+        movedTriangles = new int[triangleCount];
+        movedStamps = new int[triangleCount];
+        stamp = 0;
+    }
+
+    /**
+     * @return The triangles found to have moved by the last call to updateMoved().
+     * Only the first getMovedCount() entries are valid.
+     */
+    public int[] getMovedTriangles() {
+        return movedTriangles;
+    }
+
+    /**
+     * @return The number of triangles found to have moved by the last call to
+     * updateMoved()
+     */
+    public int getMovedCount() {
+        return movedCount;
+    }
+
+    /**
+     * Calculate the normal of a triangle from its cached vertices.
+     */
+    private void updateNormal(int triangle) {
+        int v = triangle * 9;
+        float ax = vertices[v + 3] - vertices[v];
+        float ay = vertices[v + 4] - vertices[v + 1];
+        float az = vertices[v + 5] - vertices[v + 2];
+        float bx = vertices[v + 6] - vertices[v];
+        float by = vertices[v + 7] - vertices[v + 1];
+        float bz = vertices[v + 8] - vertices[v + 2];
+
+        float nx = ay * bz - az * by;
+        float ny = az * bx - ax * bz;
+        float nz = ax * by - ay * bx;
+        float length = FastMath.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length != 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+
+        int n = triangle * 3;
+        normals[n] = nx;
+        normals[n + 1] = ny;
+        normals[n + 2] = nz;
+    }
+
+    /**
+     * @return The mesh the triangles are read from
+     */
+    public Mesh getMesh() {
+        return mesh;
+    }
+
+    /**
+     * @return The number of triangles in the cache
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @param triangle The triangle to measure
+     * @return Double the area of the triangle
+     */
+    public float getDoubleArea(int triangle) {
+        int v = triangle * 9;
+        float ax = vertices[v + 3] - vertices[v];
+        float ay = vertices[v + 4] - vertices[v + 1];
+        float az = vertices[v + 5] - vertices[v + 2];
+        float bx = vertices[v + 6] - vertices[v];
+        float by = vertices[v + 7] - vertices[v + 1];
+        float bz = vertices[v + 8] - vertices[v + 2];
+
+        float nx = ay * bz - az * by;
+        float ny = az * bx - ax * bz;
+        float nz = ax * by - ay * bx;
+        return FastMath.sqrt(nx * nx + ny * ny + nz * nz);
+    }
+
+    /**
+     * @param triangle The triangle to look at
+     * @param corner The corner of the triangle, 0, 1 or 2
+     * @param store The vector to store the position of the vertex into
+     * @return The store vector
+     */
+    public Vector3f getVertex(int triangle, int corner, Vector3f store) {
+        int v = triangle * 9 + corner * 3;
+        return store.set(vertices[v], vertices[v + 1], vertices[v + 2]);
+    }
+
+    /**
+     * @param triangle The triangle to look at
+     * @param store The vector to store the normal of the triangle into
+     * @return The store vector
+     */
+    public Vector3f getNormal(int triangle, Vector3f store) {
+        int n = triangle * 3;
+        return store.set(normals[n], normals[n + 1], normals[n + 2]);
+    }
+
+    /**
+     * Store a random point within the triangle, evenly distributed over its area.
+     * 
+     * @param triangle The triangle to pick a point on
+     * @param store The vector to store the point into, in the mesh's coordinates
+     * @return The store vector
+     */
+    public Vector3f getRandomPoint(int triangle, Vector3f store) {
+        float d1 = FastMath.nextRandomFloat();
+        float d2 = FastMath.nextRandomFloat();
+
+        // Points beyond the diagonal are folded back into the triangle
+        if (d1 + d2 > 1) {
+            d1 = 1-d1;
+            d2 = 1-d2;
+        }
+
+        int v = triangle * 9;
+        float x = vertices[v];
+        float y = vertices[v + 1];
+        float z = vertices[v + 2];
+        return store.set(
+                x + (vertices[v + 3] - x) * d1 + (vertices[v + 6] - x) * d2,
+                y + (vertices[v + 4] - y) * d1 + (vertices[v + 7] - y) * d2,
+                z + (vertices[v + 5] - z) * d1 + (vertices[v + 8] - z) * d2);
+    }
+}
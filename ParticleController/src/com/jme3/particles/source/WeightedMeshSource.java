@@ -33,9 +33,8 @@ package com.jme3.particles.source;
 
 import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
-import com.jme3.math.FastMath;
-import com.jme3.math.Triangle;
 import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
 import com.jme3.particles.ParticleController;
 import com.jme3.particles.ParticleData;
 import com.jme3.particles.ParticleSource;
@@ -45,9 +44,9 @@ import java.io.IOException;
 /**
  * Generates particles from the supplied mesh. A triangle is selected at random
  * and then a random point within that triangle. The particle is then generated
- * with velocity equal to the normal of that face. Note that the normal just
- * looks at the triangle and does not use any information that might be in
- * vertex buffers or normal maps.
+ * with velocity equal to the normal of that face, rotated into the space of the
+ * particles. Note that the normal just looks at the triangle and does not use any
+ * information that might be in vertex buffers or normal maps.
  * 
  * This differs from MeshSource in that it scans the geometry and caches the
  * size of each triangle when is is constructed. It then uses those cached values
@@ -55,22 +54,21 @@ import java.io.IOException;
  * from any point on the mesh. Without this areas within large triangles have a
  * smaller chance to emit than areas within small triangles.
  * 
- * The values are scanned and cached both when this is attached and when the method
- * recalculateWeights is called. They are not updated otherwise but in most cases
- * will still be better than a MeshSource even on an animated mesh.
+ * The triangles and their sizes are scanned and cached both when this is constructed
+ * and when the method recalculateWeights is called. They are not updated otherwise,
+ * so recalculateWeights must be called for particles to follow an animated mesh.
  * 
  * This class will use more memory and CPU time than a MeshSource so should only 
  * be used when required.
  */
-public class WeightedMeshSource implements ParticleSource {
+public class WeightedMeshSource implements BatchParticleSource {
 
     private Geometry geometry;
-    private final Triangle triStore = new Triangle();
+    private TriangleCache triangles;
     private final Vector3f origin = new Vector3f();
-    private final Vector3f side1 = new Vector3f();
-    private final Vector3f side2 = new Vector3f();
+    private final SourceTransform transform = new SourceTransform();
     
-    private float[] weights;
+    private AliasTable weights;
 
     /**
      * Generate a new mesh source for the supplied geometry.
@@ -88,70 +86,47 @@ public class WeightedMeshSource implements ParticleSource {
      * the number of triangles changes.
      */
     public final void recalculateWeights() {
-        weights = new float[geometry.getMesh().getTriangleCount()];
-        float totalWeight = 0;
-        for (int i=0;i<weights.length;i++) {
-            geometry.getMesh().getTriangle(i, triStore);
-            
-            // Calculate two sides of the triangle
-            origin.set(triStore.get1());
-            side1.set(triStore.get2()).subtractLocal(origin);
-            side2.set(triStore.get3()).subtractLocal(origin);
-            
-            // Extract the length of the two sides
-            float length1 = side1.length();
-            float length2 = side2.length();
-
-            // Normalize the sides so that we can calculate the angle in order to get the area
-            side1.divideLocal(length1);
-            side2.divideLocal(length2);
-            
-            // This will calculate double the area for all the triangles, since we are
-            // looking at proportional difference this *2 will cancel out so no need to divide
-            weights[i] = length1 * length2 * FastMath.sin(side1.angleBetween(side2));
-            totalWeight += weights[i];
+        if (triangles != null && triangles.getMesh() == geometry.getMesh()) {
+            triangles.update();
+        } else {
+            triangles = new TriangleCache(geometry.getMesh());
         }
         
-        for (int i=0;i<weights.length;i++) {
-            weights[i] /= totalWeight;
+        int count = triangles.getTriangleCount();
+        float[] areas = new float[count];
+        for (int i=0;i<count;i++) {
+            // This is double the area of the triangle, since we are looking at
+            // proportional difference the *2 cancels out
+            areas[i] = triangles.getDoubleArea(i);
         }
+        
+        weights = new AliasTable(areas);
     }
+
     
     
     @Override
     public void sourceParticle(ParticleController pCtrl, int index, ParticleData particle) {
-        
-        float selector = FastMath.nextRandomFloat();
-        float totalWeight = 0;
-        int triangleIndex = -1;
-        while (totalWeight < selector) {
-            triangleIndex ++;
-            totalWeight += weights[triangleIndex];
-        }
-        
-        geometry.getMesh().getTriangle(triangleIndex, triStore);
-        
-        particle.velocity.set(triStore.getNormal());
-        
-        origin.set(triStore.get1());
-        side1.set(triStore.get2()).subtractLocal(origin);
-        side2.set(triStore.get3()).subtractLocal(origin);
-        
-        float d1 = FastMath.nextRandomFloat();
-        float d2 = FastMath.nextRandomFloat();
-        
-        if (d1 + d2 > 1) {
-            d1 = 1-d1;
-            d2 = 1-d2;
+        transform.update(geometry.getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+        place(particle);
+    }
+
+    @Override
+    public void sourceParticles(ParticleController pCtrl, int[] indices, int count) {
+        transform.update(geometry.getWorldTransform(), pCtrl.getGeometry().getWorldTransform());
+        ParticleData[] particles = pCtrl.getParticles();
+        for (int i = 0; i < count; i++) {
+            place(particles[indices[i]]);
         }
+    }
+
+    private void place(ParticleData particle) {
+        int triangleIndex = weights.select();
         
-        side1.multLocal(d1);
-        side2.multLocal(d2);
-        
-        origin.addLocal(side1).addLocal(side2);
-        
-        geometry.getWorldTransform().transformVector(origin, origin);
-        pCtrl.getGeometry().getWorldTransform().transformInverseVector(origin, particle.position);
+        triangles.getNormal(triangleIndex, particle.velocity);
+        transform.rotateDirection(particle.velocity, particle.velocity);
+        triangles.getRandomPoint(triangleIndex, origin);
+        transform.transformPosition(origin, particle.position);
     }
     
 
@@ -168,4 +143,5 @@ public class WeightedMeshSource implements ParticleSource {
     @Override
     public void read(JmeImporter im) throws IOException {
         geometry = (Geometry) im.getCapsule(this).readSavable("geometry", null);
+        recalculateWeights();
     }}
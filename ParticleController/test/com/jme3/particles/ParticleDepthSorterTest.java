@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles;
+
+import com.jme3.math.Vector3f;
+import com.jme3.particles.mesh.QuadMesh;
+import com.jme3.particles.mesh.QuadMeshBillboardStrategy;
+import com.jme3.particles.source.PointSource;
+import com.jme3.renderer.Camera;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks that the insertion sort used on later frames and the radix sort used on
+ * the first agree, including when particles lie both in front of and behind the
+ * camera so that the depths change sign.
+ */
+public class ParticleDepthSorterTest {
+
+    private static ParticleController createController(int count) {
+        ParticleController controller = new ParticleController("Test",
+                new QuadMesh(QuadMeshBillboardStrategy.CAMERA, (com.jme3.material.Material) null, 1, 1),
+                count, 1, 2, new PointSource(Vector3f.ZERO, Vector3f.ZERO), null);
+        controller.getGeometry();
+        return controller;
+    }
+
+    private static Camera createCamera() {
+        Camera cam = new Camera(640, 480);
+        cam.setLocation(Vector3f.ZERO);
+        cam.lookAt(new Vector3f(0, 0, -1), Vector3f.UNIT_Y);
+        return cam;
+    }
+
+    private static void placeParticles(ParticleController controller, Random random) {
+        for (ParticleData p : controller.getParticles()) {
+            p.active = true;
+            // The camera looks down -Z, so these are depths from -5 to 5
+            p.position.set(random.nextFloat(), random.nextFloat(), random.nextFloat() * 10 - 5);
+        }
+    }
+
+    private static void assertFurthestFirst(ParticleController controller, int[] order) {
+        ParticleData[] particles = controller.getParticles();
+        for (int i = 1; i < particles.length; i++) {
+            float previous = -particles[order[i - 1]].position.z;
+            float current = -particles[order[i]].position.z;
+            assertTrue("Particle " + i + " at depth " + current + " follows depth " + previous,
+                    previous >= current);
+        }
+    }
+
+    @Test
+    public void testInsertionSortMatchesRadixSortAcrossZero() {
+        Random random = new Random(1);
+        Camera cam = createCamera();
+        for (int trial = 0; trial < 500; trial++) {
+            ParticleController controller = createController(2 + trial % 7);
+            placeParticles(controller, random);
+
+            // The first sort of a sorter always uses the radix sort
+            ParticleDepthSorter sorter = new ParticleDepthSorter(-1);
+            assertFurthestFirst(controller, sorter.sort(cam, controller));
+
+            // Nudge the particles so a few swap places, which the insertion sort handles
+            for (ParticleData p : controller.getParticles()) {
+                p.position.z += random.nextFloat() * 0.5f - 0.25f;
+            }
+            int[] insertion = sorter.sort(cam, controller).clone();
+            int[] radix = new ParticleDepthSorter(-1).sort(cam, controller);
+            assertFurthestFirst(controller, insertion);
+            assertArrayEquals(radix, insertion);
+        }
+    }
+
+    @Test
+    public void testReemittedParticleIsResorted() {
+        ParticleController controller = createController(3);
+        Camera cam = createCamera();
+        controller.emitNextParticleFrom(new Vector3f(0, 0, -1), Vector3f.ZERO);
+        controller.emitNextParticleFrom(new Vector3f(0, 0, -2), Vector3f.ZERO);
+        controller.emitNextParticleFrom(new Vector3f(0, 0, -3), Vector3f.ZERO);
+
+        // The camera stays still so only the emission can cause a re-sort
+        ParticleDepthSorter sorter = new ParticleDepthSorter();
+        assertArrayEquals(new int[] {2, 1, 0}, sorter.sort(cam, controller));
+
+        // Between two sorts the furthest particle dies and its slot is reused by
+        // one nearer than all of the others
+        controller.killParticle(2);
+        assertEquals(2, controller.emitNextParticleFrom(new Vector3f(0, 0, -0.5f), Vector3f.ZERO));
+        assertArrayEquals(new int[] {1, 0, 2}, sorter.sort(cam, controller));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.emissioncontrollers.RegularEmission;
+import com.jme3.particles.source.PointSource;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.shader.VarType;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks which mesh a LodMesh picks when the particles are shown on several
+ * cameras.
+ */
+public class LodMeshTest {
+
+    private static Camera camera(float distance) {
+        Camera cam = new Camera(640, 480);
+        cam.setLocation(new Vector3f(0, 0, distance));
+        cam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        return cam;
+    }
+
+    private static void render(ParticleController controller, Camera cam) {
+        controller.getGeometry().updateGeometricState();
+        controller.render(null, new ViewPort("Test", cam));
+    }
+
+    @Test
+    public void testCamerasEitherSideOfSwitchDistanceShareMesh() {
+        MaterialDef def = new MaterialDef(null, "Test");
+        def.addMaterialParam(VarType.Float, "Quadratic", null);
+        def.addMaterialParam(VarType.Boolean, "PointSprite", null);
+        LodMesh mesh = new LodMesh(QuadMeshBillboardStrategy.CAMERA, new Material(def), 1, 1, 50);
+        ParticleController controller = new ParticleController("Test", mesh, 100, 10, 10,
+                new PointSource(new Vector3f(-1, -1, -1), new Vector3f(1, 1, 1)), new RegularEmission(100));
+        new Node("Root").attachChild(controller.getGeometry());
+        controller.update(0.5f);
+
+        Camera far = camera(100);
+        Camera near = camera(10);
+
+        // The first camera rendered on picks the mesh for both
+        render(controller, far);
+        assertSame(far, mesh.getLodCamera());
+        assertTrue(mesh.isUsingPoints());
+        VertexBuffer positions = mesh.getBuffer(VertexBuffer.Type.Position);
+        for (int frame = 0; frame < 5; frame++) {
+            controller.update(0.01f);
+            render(controller, far);
+            render(controller, near);
+            assertTrue(mesh.isUsingPoints());
+            assertSame(positions, mesh.getBuffer(VertexBuffer.Type.Position));
+        }
+
+        mesh.setLodCamera(near);
+        for (int frame = 0; frame < 5; frame++) {
+            controller.update(0.01f);
+            render(controller, far);
+            render(controller, near);
+            assertFalse(mesh.isUsingPoints());
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.material.Material;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleMesh;
+import com.jme3.particles.emissioncontrollers.RegularEmission;
+import com.jme3.particles.source.PointSource;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Box;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Times how long each particle mesh takes to write a frame of particle data into
+ * its buffers, comparing the staged bulk fill with a reference copy of the
+ * previous fill that wrote one float at a time. This is a benchmark rather than
+ * a test, run it through its main method when changing a fill path.
+ */
+public class MeshFillBenchmark {
+
+    private static final int PARTICLES = 20000;
+    private static final int WARMUP_FRAMES = 500;
+    private static final int FRAMES = 2000;
+
+    public static void main(String[] args) {
+        Camera cam = new Camera(640, 480);
+        cam.setLocation(new Vector3f(0, 0, 20));
+        cam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+
+        compare("QuadMesh CAMERA", cam,
+                new ReferenceQuadMesh(QuadMeshBillboardStrategy.CAMERA),
+                new QuadMesh(QuadMeshBillboardStrategy.CAMERA, (Material) null, 2, 2));
+        compare("QuadMesh VELOCITY", cam,
+                new ReferenceQuadMesh(QuadMeshBillboardStrategy.VELOCITY),
+                new QuadMesh(QuadMeshBillboardStrategy.VELOCITY, (Material) null, 2, 2));
+        compare("PointMesh", cam,
+                new ReferencePointMesh(),
+                new PointMesh(null, 2, 2));
+        Box template = new Box(0.5f, 0.5f, 0.5f);
+        compare("TemplateMesh", cam,
+                new ReferenceTemplateMesh(template),
+                new TemplateMesh(null, false, true, template));
+    }
+
+    private static void compare(String name, Camera cam, ParticleMesh reference, ParticleMesh staged) {
+        long referenceTime = time(cam, reference);
+        long stagedTime = time(cam, staged);
+        System.out.println(name + ": per float " + (referenceTime / 1000) + " us, staged "
+                + (stagedTime / 1000) + " us per frame of " + PARTICLES + " particles");
+    }
+
+    /**
+     * @return The average time taken to fill the mesh, in nanoseconds
+     */
+    private static long time(Camera cam, ParticleMesh mesh) {
+        ParticleController controller = new ParticleController("Benchmark", mesh,
+                PARTICLES, 1000, 1000,
+                new PointSource(new Vector3f(-1, -1, -1), new Vector3f(1, 1, 1)),
+                new RegularEmission(PARTICLES * 10));
+        controller.getGeometry();
+        // Emit every particle, they live long enough to stay for the whole run
+        controller.update(0.2f);
+
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            mesh.updateParticleData(cam, controller);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            mesh.updateParticleData(cam, controller);
+        }
+        return (System.nanoTime() - start) / FRAMES;
+    }
+
+    /**
+     * The separate buffer fill of QuadMesh as it was before the staging arrays,
+     * with every float written by its own absolute put. Only the layout the
+     * benchmark uses is covered, two by two sprites with float texture
+     * coordinates on the calling thread.
+     */
+    private static class ReferenceQuadMesh extends QuadMesh {
+
+        private final QuadMeshBillboardStrategy billboardStrategy;
+
+        private final Vector3f up = new Vector3f();
+        private final Vector3f left = new Vector3f();
+        private final Vector3f dir = new Vector3f();
+
+        ReferenceQuadMesh(QuadMeshBillboardStrategy billboardStrategy) {
+            super(billboardStrategy, (Material) null, 2, 2);
+            this.billboardStrategy = billboardStrategy;
+        }
+
+        @Override
+        public void updateParticleData(Camera cam, ParticleController controller) {
+
+            ParticleData[] particles = controller.getParticles();
+            int[] order = getDrawOrder(cam, controller);
+
+            QuadMeshBillboardStrategy strategy = cam != null ? billboardStrategy : QuadMeshBillboardStrategy.UNIT_Y;
+            strategy.prepareFrame(cam, controller, up, left, dir);
+
+            VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
+            FloatBuffer positions = (FloatBuffer) pvb.getData();
+
+            VertexBuffer cvb = getBuffer(VertexBuffer.Type.Color);
+            ByteBuffer colors = (ByteBuffer) cvb.getData();
+
+            VertexBuffer tvb = getBuffer(VertexBuffer.Type.TexCoord);
+            FloatBuffer texcoords = (FloatBuffer) tvb.getData();
+
+            positions.clear();
+            colors.clear();
+            texcoords.clear();
+
+            boolean perParticle = strategy.isPerParticle();
+            float upX = up.x, upY = up.y, upZ = up.z;
+            float leftX = left.x, leftY = left.y, leftZ = left.z;
+
+            for (int i = 0; i < particles.length; i++) {
+                ParticleData p = particles[order[i]];
+                int pos = i * 12;
+                int col = i * 16;
+
+                if (p.active) {
+                    if (perParticle) {
+                        strategy.billboard(cam, controller, p, up, left, dir);
+                        upX = up.x; upY = up.y; upZ = up.z;
+                        leftX = left.x; leftY = left.y; leftZ = left.z;
+                    }
+                    float size = p.size;
+                    float ux = upX * size, uy = upY * size, uz = upZ * size;
+                    float lx = leftX * size, ly = leftY * size, lz = leftZ * size;
+                    float x = p.position.x, y = p.position.y, z = p.position.z;
+
+                    positions.put(pos, x + lx + ux).put(pos + 1, y + ly + uy).put(pos + 2, z + lz + uz);
+                    positions.put(pos + 3, x - lx + ux).put(pos + 4, y - ly + uy).put(pos + 5, z - lz + uz);
+                    positions.put(pos + 6, x + lx - ux).put(pos + 7, y + ly - uy).put(pos + 8, z + lz - uz);
+                    positions.put(pos + 9, x - lx - ux).put(pos + 10, y - ly - uy).put(pos + 11, z - lz - uz);
+
+                    int abgr = p.color.asIntABGR();
+                    colors.putInt(col, abgr).putInt(col + 4, abgr).putInt(col + 8, abgr).putInt(col + 12, abgr);
+                } else {
+                    for (int j = 0; j < 12; j++) {
+                        positions.put(pos + j, 0);
+                    }
+                    colors.putInt(col, 0).putInt(col + 4, 0).putInt(col + 8, 0).putInt(col + 12, 0);
+                }
+            }
+
+            for (int i = 0; i < particles.length; i++) {
+                ParticleData p = particles[order[i]];
+                int tex = i * 8;
+
+                if (p.active) {
+                    int uv = p.spriteIndex * 4;
+                    float startX = spriteUVs[uv];
+                    float startY = spriteUVs[uv + 1];
+                    float endX = spriteUVs[uv + 2];
+                    float endY = spriteUVs[uv + 3];
+
+                    texcoords.put(tex, startX).put(tex + 1, endY);
+                    texcoords.put(tex + 2, endX).put(tex + 3, endY);
+                    texcoords.put(tex + 4, startX).put(tex + 5, startY);
+                    texcoords.put(tex + 6, endX).put(tex + 7, startY);
+                } else {
+                    texcoords.put(tex, 0).put(tex + 1, 1);
+                    texcoords.put(tex + 2, 1).put(tex + 3, 1);
+                    texcoords.put(tex + 4, 0).put(tex + 5, 0);
+                    texcoords.put(tex + 6, 1).put(tex + 7, 0);
+                }
+            }
+
+            pvb.updateData(positions);
+            cvb.updateData(colors);
+            tvb.updateData(texcoords);
+
+            updateCounts();
+        }
+    }
+
+    /**
+     * The separate buffer fill of PointMesh as it was before the staging arrays,
+     * with a relative put for every value of each active particle.
+     */
+    private static class ReferencePointMesh extends PointMesh {
+
+        ReferencePointMesh() {
+            super(null, 2, 2);
+        }
+
+        @Override
+        public void updateParticleData(Camera cam, ParticleController controller) {
+
+            ParticleData[] particles = controller.getParticles();
+            int[] order = getDrawOrder(cam, controller);
+
+            VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
+            FloatBuffer positions = (FloatBuffer) pvb.getData();
+
+            VertexBuffer cvb = getBuffer(VertexBuffer.Type.Color);
+            ByteBuffer colors = (ByteBuffer) cvb.getData();
+
+            VertexBuffer svb = getBuffer(VertexBuffer.Type.Size);
+            FloatBuffer sizes = (FloatBuffer) svb.getData();
+
+            VertexBuffer tvb = getBuffer(VertexBuffer.Type.TexCoord);
+            FloatBuffer texcoords = (FloatBuffer) tvb.getData();
+
+            positions.clear();
+            colors.clear();
+            sizes.clear();
+            texcoords.clear();
+
+            for (int i = 0; i < particles.length; i++) {
+                ParticleData p = particles[order[i]];
+
+                if (p.active) {
+                    positions.put(p.position.x)
+                             .put(p.position.y)
+                             .put(p.position.z);
+
+                    sizes.put(p.size);
+                    colors.putInt(p.color.asIntABGR());
+                    texcoords.put(spriteUVs, p.spriteIndex * 4, 4);
+                }
+            }
+
+            positions.flip();
+            colors.flip();
+            sizes.flip();
+            texcoords.flip();
+
+            pvb.updateData(positions);
+            cvb.updateData(colors);
+            svb.updateData(sizes);
+            tvb.updateData(texcoords);
+
+            updateCounts();
+        }
+    }
+
+    /**
+     * The per frame part of the TemplateMesh fill as it was before the staging
+     * arrays, transforming each particle into its slot with an absolute put for
+     * every float. The particles keep the same template for the whole run, so
+     * once the first frame has written the slots this is all that is left.
+     */
+    private static class ReferenceTemplateMesh extends TemplateMesh {
+
+        private final float[] templatePositions;
+        private final float[] templateNormals;
+        private final int templateVertices;
+        private boolean slotsWritten;
+
+        ReferenceTemplateMesh(Mesh template) {
+            super(null, false, true, template);
+            templatePositions = toArray(template.getFloatBuffer(VertexBuffer.Type.Position));
+            templateNormals = toArray(template.getFloatBuffer(VertexBuffer.Type.Normal));
+            templateVertices = template.getVertexCount();
+        }
+
+        private static float[] toArray(FloatBuffer buffer) {
+            float[] result = new float[buffer.limit()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = buffer.get(i);
+            }
+            return result;
+        }
+
+        @Override
+        public void updateParticleData(Camera cam, ParticleController controller) {
+            if (!slotsWritten) {
+                super.updateParticleData(cam, controller);
+                slotsWritten = true;
+                return;
+            }
+
+            VertexBuffer pvb = getBuffer(VertexBuffer.Type.Position);
+            FloatBuffer positions = (FloatBuffer) pvb.getData();
+
+            VertexBuffer nvb = getBuffer(VertexBuffer.Type.Normal);
+            FloatBuffer normals = (FloatBuffer) nvb.getData();
+
+            positions.clear();
+            normals.clear();
+
+            ParticleData[] particles = controller.getParticles();
+            int usedSlots = 0;
+            for (int i = 0; i < particles.length; i++) {
+                ParticleData p = particles[i];
+                if (p.active) {
+                    transformSlot(i, p, positions, normals);
+                    usedSlots = i + 1;
+                }
+            }
+
+            int usedVertices = usedSlots * templateVertices;
+            positions.position(0).limit(usedVertices * 3);
+            pvb.updateData(positions);
+            normals.position(0).limit(usedVertices * 3);
+            nvb.updateData(normals);
+
+            updateCounts();
+        }
+
+        private void transformSlot(int slot, ParticleData p, FloatBuffer positions, FloatBuffer normals) {
+
+            Quaternion q = p.rotation;
+            float norm = q.norm();
+            float s = (norm == 1f) ? 2f : (norm > 0f) ? 2f / norm : 0;
+
+            float xs = q.getX() * s, ys = q.getY() * s, zs = q.getZ() * s;
+            float xx = q.getX() * xs, xy = q.getX() * ys, xz = q.getX() * zs;
+            float xw = q.getW() * xs, yy = q.getY() * ys, yz = q.getY() * zs;
+            float yw = q.getW() * ys, zz = q.getZ() * zs, zw = q.getW() * zs;
+
+            float m00 = 1 - (yy + zz), m01 = xy - zw, m02 = xz + yw;
+            float m10 = xy + zw, m11 = 1 - (xx + zz), m12 = yz - xw;
+            float m20 = xz - yw, m21 = yz + xw, m22 = 1 - (xx + yy);
+
+            float size = p.size;
+            float tx = p.position.x, ty = p.position.y, tz = p.position.z;
+
+            int start = slot * templateVertices * 3;
+
+            float[] source = templatePositions;
+            for (int i = 0; i < source.length; i += 3) {
+                float x = source[i] * size, y = source[i + 1] * size, z = source[i + 2] * size;
+                positions.put(start + i, m00 * x + m01 * y + m02 * z + tx)
+                        .put(start + i + 1, m10 * x + m11 * y + m12 * z + ty)
+                        .put(start + i + 2, m20 * x + m21 * y + m22 * z + tz);
+            }
+
+            source = templateNormals;
+            for (int i = 0; i < source.length; i += 3) {
+                float x = source[i], y = source[i + 1], z = source[i + 2];
+                normals.put(start + i, m00 * x + m01 * y + m02 * z)
+                        .put(start + i + 1, m10 * x + m11 * y + m12 * z)
+                        .put(start + i + 2, m20 * x + m21 * y + m22 * z);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleMesh;
+import com.jme3.particles.emissioncontrollers.RegularEmission;
+import com.jme3.particles.source.PointSource;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Box;
+import java.nio.FloatBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks that the meshes cope with particles holding sprite indices outside the
+ * sprite sheet.
+ */
+public class SpriteIndexTest {
+
+    /**
+     * Emits a single particle into the mesh and gives it the sprite index.
+     */
+    private static ParticleController emit(ParticleMesh mesh, int spriteIndex) {
+        ParticleController controller = new ParticleController("Test", mesh, 1, 10, 10,
+                new PointSource(Vector3f.ZERO, Vector3f.ZERO), new RegularEmission(10));
+        controller.getGeometry();
+        controller.update(0.2f);
+        ParticleData p = controller.getParticles()[0];
+        assertTrue(p.active);
+        p.spriteIndex = spriteIndex;
+        return controller;
+    }
+
+    private static float[] texCoords(ParticleMesh mesh, int count) {
+        FloatBuffer texcoords = mesh.getFloatBuffer(VertexBuffer.Type.TexCoord);
+        float[] result = new float[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = texcoords.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testQuadMeshWrapsIndexWhenSheetShrinks() {
+        QuadMesh mesh = new QuadMesh(QuadMeshBillboardStrategy.CAMERA, (Material) null, 2, 2);
+        ParticleController controller = emit(mesh, 3);
+        mesh.setSpriteColumsAndRows(2, 1);
+        mesh.updateParticleData(null, controller);
+
+        // Index 3 wraps onto the right hand sprite of the two
+        assertArrayEquals(new float[] { 0.5f, 1, 1, 1, 0.5f, 0, 1, 0 }, texCoords(mesh, 8), 0);
+    }
+
+    @Test
+    public void testPointMeshWrapsIndexWhenSheetShrinks() {
+        PointMesh mesh = new PointMesh(null, 2, 2);
+        ParticleController controller = emit(mesh, 3);
+        mesh.setSpriteColumsAndRows(2, 1);
+        mesh.updateParticleData(null, controller);
+
+        assertArrayEquals(new float[] { 0.5f, 0, 1, 1 }, texCoords(mesh, 4), 0);
+    }
+
+    @Test
+    public void testTemplateMeshWrapsIndexOntoTemplates() {
+        TemplateMesh mesh = new TemplateMesh(null, false, false, new Box(1, 1, 1));
+        ParticleController controller = emit(mesh, 1);
+        mesh.updateParticleData(null, controller);
+
+        assertEquals(new Box(1, 1, 1).getTriangleCount(), mesh.getTriangleCount());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedColumnAndRowMapOntoIndex() {
+        QuadMesh mesh = new QuadMesh(QuadMeshBillboardStrategy.CAMERA, (Material) null, 4, 3);
+        ParticleData p = new ParticleData();
+        p.setSpriteCol(mesh, 1);
+        p.setSpriteRow(mesh, 2);
+        assertEquals(2 * 4 + 1, p.spriteIndex);
+        assertEquals(1, p.getSpriteCol(mesh));
+        assertEquals(2, p.getSpriteRow(mesh));
+
+        p.setSpriteCol(mesh, 3);
+        assertEquals(2 * 4 + 3, p.spriteIndex);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.mesh;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.emissioncontrollers.RegularEmission;
+import com.jme3.particles.influencers.GravityInfluencer;
+import com.jme3.particles.influencers.SizeInfluencer;
+import com.jme3.particles.source.PointSource;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import java.nio.FloatBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks the trails recorded by a TrailMesh.
+ */
+public class TrailMeshTest {
+
+    private static int countSegments(TrailMesh mesh) {
+        IndexBuffer indexes = mesh.getIndexBuffer();
+        int segments = 0;
+        for (int i = 0; i < indexes.size(); i += 6) {
+            if (indexes.get(i) != indexes.get(i + 1)) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    @Test
+    public void testSteadilyMovingParticleBuildsTrail() {
+        // Each frame the particle moves 0.1, a fifth of the segment length
+        TrailMesh mesh = new TrailMesh((Material) null, 16, 0.5f);
+        Vector3f velocity = new Vector3f(6, 0, 0);
+        ParticleController controller = new ParticleController("Test", mesh, 1, 100, 100,
+                new PointSource(velocity, velocity), new RegularEmission(10));
+        controller.getGeometry();
+
+        for (int frame = 0; frame < 120; frame++) {
+            controller.update(1 / 60f);
+        }
+        mesh.updateParticleData(null, controller);
+
+        // The particle has travelled about 12, so 0.5 apart the trail is full
+        assertEquals(15, countSegments(mesh));
+    }
+
+    @Test
+    public void testTrailGrowsWithDistance() {
+        TrailMesh mesh = new TrailMesh((Material) null, 64, 0.5f);
+        Vector3f velocity = new Vector3f(0, 0, 6);
+        ParticleController controller = new ParticleController("Test", mesh, 1, 100, 100,
+                new PointSource(velocity, velocity), new RegularEmission(10));
+        controller.getGeometry();
+
+        for (int frame = 0; frame < 60; frame++) {
+            controller.update(1 / 60f);
+        }
+        mesh.updateParticleData(null, controller);
+
+        // About 6 travelled, so one segment per 0.5 plus the one following the particle
+        int segments = countSegments(mesh);
+        assertTrue("Only " + segments + " segments", segments >= 11 && segments <= 13);
+    }
+
+    @Test
+    public void testBoundContainsTrails() {
+        TrailMesh mesh = new TrailMesh((Material) null, 12, 0.2f);
+        ParticleController controller = new ParticleController("Test", mesh, 200, 1, 3,
+                new PointSource(new Vector3f(-4, -4, -4), new Vector3f(4, 4, 4)), new RegularEmission(150),
+                new GravityInfluencer(), new SizeInfluencer(0.5f, 0.1f));
+        controller.getGeometry();
+
+        for (int frame = 0; frame < 200; frame++) {
+            controller.update(1 / 30f);
+            mesh.updateParticleData(null, controller);
+
+            BoundingBox bound = (BoundingBox) mesh.getBound();
+            Vector3f min = bound.getMin(null).subtractLocal(0.0001f, 0.0001f, 0.0001f);
+            Vector3f max = bound.getMax(null).addLocal(0.0001f, 0.0001f, 0.0001f);
+            FloatBuffer positions = (FloatBuffer) mesh.getBuffer(VertexBuffer.Type.Position).getData();
+            IndexBuffer indexes = mesh.getIndexBuffer();
+            for (int i = 0; i < indexes.size(); i += 6) {
+                if (indexes.get(i) == indexes.get(i + 1)) {
+                    continue;
+                }
+                for (int k = 0; k < 6; k++) {
+                    int v = indexes.get(i + k) * 3;
+                    Vector3f vertex = new Vector3f(positions.get(v), positions.get(v + 1), positions.get(v + 2));
+                    assertTrue("Vertex " + vertex + " outside " + bound + " on frame " + frame,
+                            vertex.x >= min.x && vertex.y >= min.y && vertex.z >= min.z
+                            && vertex.x <= max.x && vertex.y <= max.y && vertex.z <= max.z);
+                }
+            }
+        }
+    }
+}
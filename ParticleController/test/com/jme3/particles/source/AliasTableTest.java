@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks that the AliasTable selects each index in proportion to its weight.
+ */
+public class AliasTableTest {
+
+    private static void assertDistribution(float[] weights, int samples) {
+        AliasTable table = new AliasTable(weights);
+        int[] counts = new int[weights.length];
+        for (int i = 0; i < samples; i++) {
+            counts[table.select()]++;
+        }
+
+        float total = 0;
+        for (float weight : weights) {
+            total += weight;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            double expected = samples * weights[i] / total;
+            // Allow five standard deviations of the binomial count
+            double tolerance = 5 * Math.sqrt(expected * (1 - weights[i] / total)) + 1;
+            assertEquals("Index " + i, expected, counts[i], tolerance);
+        }
+    }
+
+    @Test
+    public void testUnevenWeights() {
+        assertDistribution(new float[] {1, 2, 3, 4, 0, 10}, 200000);
+    }
+
+    @Test
+    public void testLowWeightsInLargeTable() {
+        // With a million slots a single float has only a few bits left over once
+        // a slot is picked, so the low weights must be tested with a separate
+        // random number to be selected at their true rate
+        float[] weights = new float[1 << 20];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i % 2 == 0 ? 0.2f : 1.8f;
+        }
+        AliasTable table = new AliasTable(weights);
+        int samples = 1000000;
+        int low = 0;
+        for (int i = 0; i < samples; i++) {
+            if (table.select() % 2 == 0) {
+                low++;
+            }
+        }
+        double expected = samples * 0.1;
+        assertEquals(expected, low, 5 * Math.sqrt(expected * 0.9));
+    }
+
+    @Test
+    public void testZeroWeightsAreEven() {
+        assertDistribution(new float[] {1, 1, 1, 1}, 100000);
+        AliasTable table = new AliasTable(new float[] {0, 0, 0});
+        int[] counts = new int[3];
+        for (int i = 0; i < 30000; i++) {
+            counts[table.select()]++;
+        }
+        for (int count : counts) {
+            assertEquals(10000, count, 500);
+        }
+    }
+}
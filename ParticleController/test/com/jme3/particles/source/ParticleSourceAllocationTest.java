@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2009-2012 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.jme3.particles.source;
+
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
+import com.jme3.particles.BatchParticleSource;
+import com.jme3.particles.ParticleController;
+import com.jme3.particles.ParticleData;
+import com.jme3.particles.ParticleSource;
+import com.jme3.particles.emissioncontrollers.RegularEmission;
+import com.jme3.particles.mesh.QuadMesh;
+import com.jme3.particles.mesh.QuadMeshBillboardStrategy;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+import com.jme3.texture.Image;
+import com.jme3.texture.image.ImageRaster;
+import com.jme3.util.BufferUtils;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that none of the built in particle sources allocate while emitting, through
+ * either the single particle or the batch path.
+ * 
+ * The allocations are measured before the optimising compiler has compiled the
+ * emission code, as it could otherwise remove allocations by escape analysis that
+ * a less aggressive JVM would still make. After a short warm up to load the classes
+ * involved and fill any lazily built caches, exactly no bytes may be allocated.
+ * The JVM itself now and then allocates a few hundred bytes on the thread, so the
+ * emissions are measured over several rounds and the least of them must be zero.
+ * An allocation made for each particle would show up in every round.
+ */
+public class ParticleSourceAllocationTest {
+
+    private static final int WARMUP = 10;
+    private static final int EMISSIONS = 1000;
+    private static final int BATCH = 10;
+    private static final int ROUNDS = 5;
+
+    private com.sun.management.ThreadMXBean threads;
+    private ParticleController controller;
+    private Node scene;
+    private Geometry box;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        scene = new Node("Scene");
+        controller = createController(BATCH);
+        scene.attachChild(controller.getGeometry());
+
+        box = new Geometry("Box", new Box(1, 2, 3));
+        box.setLocalTranslation(4, 5, 6);
+        Node boxes = new Node("Boxes");
+        boxes.attachChild(box);
+        scene.attachChild(boxes);
+        scene.updateGeometricState();
+    }
+
+    private static ParticleController createController(int count) {
+        return new ParticleController("Test",
+                new QuadMesh(QuadMeshBillboardStrategy.CAMERA, (Material) null, 1, 1),
+                count, 10, 10, new PointSource(new Vector3f(-1, -1, -1), new Vector3f(1, 1, 1)),
+                new RegularEmission(100));
+    }
+
+    private static Image createImage() {
+        Image image = new Image(Image.Format.RGBA8, 8, 8, BufferUtils.createByteBuffer(8 * 8 * 4));
+        ImageRaster raster = ImageRaster.create(image);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                raster.setPixel(x, y, (x + y) % 2 == 0 ? ColorRGBA.White : ColorRGBA.Gray);
+            }
+        }
+        return image;
+    }
+
+    private long allocatedBy(ParticleSource source, int rounds) {
+        ParticleData particle = new ParticleData();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < rounds; i++) {
+            source.sourceParticle(controller, 0, particle);
+        }
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    private long allocatedByBatches(BatchParticleSource source, int rounds) {
+        int[] indices = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            indices[i] = i;
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < rounds; i++) {
+            source.sourceParticles(controller, indices, BATCH);
+        }
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    private void assertNoAllocation(ParticleSource source) {
+        String name = source.getClass().getSimpleName();
+        allocatedBy(source, WARMUP);
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            least = Math.min(least, allocatedBy(source, EMISSIONS));
+        }
+        assertEquals(name + " bytes allocated for " + EMISSIONS + " particles", 0, least);
+
+        if (source instanceof BatchParticleSource) {
+            BatchParticleSource batch = (BatchParticleSource) source;
+            allocatedByBatches(batch, WARMUP);
+            least = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                least = Math.min(least, allocatedByBatches(batch, EMISSIONS / BATCH));
+            }
+            assertEquals(name + " bytes allocated for " + EMISSIONS + " batched particles", 0, least);
+        }
+    }
+
+    @Test
+    public void testPointSource() {
+        PointSource source = new PointSource(new Vector3f(-1, -1, -1), new Vector3f(1, 1, 1));
+        source.setLocalTranslation(1, 2, 3);
+        source.updateGeometricState();
+        assertNoAllocation(source);
+
+        ParticleData particle = new ParticleData();
+        source.sourceParticle(controller, 0, particle);
+        assertEquals(new Vector3f(1, 2, 3), particle.position);
+    }
+
+    @Test
+    public void testMeshSource() {
+        assertNoAllocation(new MeshSource(box));
+    }
+
+    @Test
+    public void testWeightedMeshSource() {
+        assertNoAllocation(new WeightedMeshSource(box));
+    }
+
+    @Test
+    public void testNodeMeshSource() {
+        assertNoAllocation(new NodeMeshSource(box.getParent()));
+    }
+
+    @Test
+    public void testAnimatedMeshSource() {
+        AnimatedMeshSource source = new AnimatedMeshSource();
+        box.addControl(source);
+        scene.updateLogicalState(0.1f);
+        assertNoAllocation(source);
+    }
+
+    @Test
+    public void testImageSourceOnRectangle() {
+        assertNoAllocation(new ImageSource(createImage(), 4, 4));
+    }
+
+    @Test
+    public void testImageSourceOnGeometry() {
+        assertNoAllocation(new ImageSource(createImage(), box));
+    }
+
+    @Test
+    public void testParticleParticleSource() {
+        ParticleController parent = createController(50);
+        scene.attachChild(parent.getGeometry());
+        scene.updateGeometricState();
+        for (int i = 0; i < 10; i++) {
+            parent.update(0.1f);
+        }
+        assertTrue(parent.getActiveIndexCount() > 0);
+        assertNoAllocation(new ParticleParticleSource(parent));
+    }
+}